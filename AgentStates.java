@@ -0,0 +1,127 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+// Current state of every person in primitive arrays indexed by Id.index(): what the last tracked event was,
+// its time and link, and the vehicle the person is in. Memory grows with the number of persons only.
+class AgentStates {
+
+    // not seen yet
+    static final byte UNKNOWN = 0;
+    // seen, e.g. entered a vehicle, but no tracked event yet
+    static final byte NONE = 1;
+    // at an activity; the time is the start of that activity
+    static final byte ACTIVITY = 2;
+    // departed on a tracked leg
+    static final byte DEPARTURE = 3;
+    // entered a link in a vehicle
+    static final byte LINK_ENTER = 4;
+
+    private byte[] state = new byte[0];
+    private double[] time = new double[0];
+    private int[] link = new int[0];
+    // vehicle Id index + 1, 0 when not in a vehicle
+    private int[] vehicle = new int[0];
+    // persons per known state
+    private final long[] counts = new long[5];
+
+    public byte state(Id<Person> personId) {
+        int index = personId.index();
+        return index < state.length ? state[index] : UNKNOWN;
+    }
+
+    public boolean isKnown(Id<Person> personId) {
+        return state(personId) != UNKNOWN;
+    }
+
+    public double time(Id<Person> personId) {
+        return time[personId.index()];
+    }
+
+    public int linkIndex(Id<Person> personId) {
+        return link[personId.index()];
+    }
+
+    public long count(byte ofState) {
+        return counts[ofState];
+    }
+
+    public long knownPersons() {
+        return counts[NONE] + counts[ACTIVITY] + counts[DEPARTURE] + counts[LINK_ENTER];
+    }
+
+    public void markKnown(Id<Person> personId) {
+        int index = ensure(personId);
+        if (state[index] == UNKNOWN) {
+            state[index] = NONE;
+            link[index] = -1;
+            counts[NONE]++;
+        }
+    }
+
+    public void set(Id<Person> personId, byte newState, Id<Link> linkId, double newTime) {
+        int index = ensure(personId);
+        if (state[index] != UNKNOWN) {
+            counts[state[index]]--;
+        }
+        counts[newState]++;
+        state[index] = newState;
+        link[index] = linkId == null ? -1 : linkId.index();
+        time[index] = newTime;
+    }
+
+    public void enterVehicle(Id<Person> personId, Id<Vehicle> vehicleId) {
+        vehicle[ensure(personId)] = vehicleId.index() + 1;
+    }
+
+    public void leaveVehicle(Id<Person> personId) {
+        int index = personId.index();
+        if (index < vehicle.length) {
+            vehicle[index] = 0;
+        }
+    }
+
+    // -1 when not in a vehicle
+    public int vehicleIndex(Id<Person> personId) {
+        int index = personId.index();
+        return index < vehicle.length ? vehicle[index] - 1 : -1;
+    }
+
+    // By person index, for checkpoints: persons below capacity() may be known.
+    public int capacity() {
+        return state.length;
+    }
+
+    public byte stateAt(int index) {
+        return state[index];
+    }
+
+    public double timeAt(int index) {
+        return time[index];
+    }
+
+    public int linkAt(int index) {
+        return link[index];
+    }
+
+    public int vehicleAt(int index) {
+        return vehicle[index] - 1;
+    }
+
+    private int ensure(Id<Person> personId) {
+        int index = personId.index();
+        if (index >= state.length) {
+            int size = Math.max(index + 1, Math.max(1024, state.length * 2));
+            state = Arrays.copyOf(state, size);
+            time = Arrays.copyOf(time, size);
+            link = Arrays.copyOf(link, size);
+            vehicle = Arrays.copyOf(vehicle, size);
+        }
+        return index;
+    }
+}
@@ -3,13 +3,9 @@ package org.matsim.project;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.core.events.MatsimEventsReader;
-import org.matsim.vehicles.Vehicle;
-import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.network.Link;
-import org.matsim.api.core.v01.network.Network;
-import org.matsim.core.network.NetworkUtils;
-import org.matsim.api.core.v01.Coord;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -17,13 +13,19 @@ import java.util.regex.Pattern;
 
 public class AgentTracker {
 
-    private final EventsManager eventsManager;
     private final Pattern[] ignorePatterns;
-    private Network network;
+    private final AgentTrackerConfig config = new AgentTrackerConfig();
+    private NetworkSnapshot network;
+    private String networkPath;
+    // time the last network load took, reported with every run on it
+    private long networkLoadNanos = 0;
+    private AgentTrackerEventHandler handler;
 
     public AgentTracker(String[] ignoreRegex, boolean ignorePtAgents) {
-        this.eventsManager = EventsUtils.createEventsManager();
+        this.ignorePatterns = ignorePatterns(ignoreRegex, ignorePtAgents);
+    }
 
+    static Pattern[] ignorePatterns(String[] ignoreRegex, boolean ignorePtAgents) {
         // Add pt_.* to ignoreRegex if ignorePtAgents is true and it is not already for the PT drivers
         if (ignorePtAgents) {
             Set<String> ignoreSet = new HashSet<>(Arrays.asList(ignoreRegex));
@@ -31,32 +33,172 @@ public class AgentTracker {
             ignoreRegex = ignoreSet.toArray(new String[ignoreSet.size()]);
         }
 
-        this.ignorePatterns = new Pattern[ignoreRegex.length];
+        Pattern[] ignorePatterns = new Pattern[ignoreRegex.length];
         for (int i = 0; i < ignoreRegex.length; i++) {
             ignorePatterns[i] = Pattern.compile(ignoreRegex[i]);
         }
+        return ignorePatterns;
+    }
+
+    public AgentTrackerConfig getConfig() {
+        return config;
+    }
+
+    // Loads the network and its tile decomposition, unless they are already loaded from the same file.
+    public synchronized void loadNetwork(String networkPath) {
+        if (!networkPath.equals(this.networkPath) || network.tileIndex().getTileSize() != config.getTileSize()) {
+            TrackerMetrics.PhaseEvent phase = TrackerMetrics.beginPhase("networkLoad");
+            // Map the binary snapshot of the network from a previous run, or create it from the network XML.
+            network = NetworkSnapshot.loadOrCreate(networkPath, config.getTileSize());
+            this.networkPath = networkPath;
+            networkLoadNanos = TrackerMetrics.endPhase(phase);
+        }
     }
 
     public void iterateEvents(String filePath, String networkPath) {
-        
-        network = NetworkUtils.readNetwork(networkPath);
+        loadNetwork(networkPath);
+        if (handler != null) {
+            handler.close();
+        }
+        handler = readEvents(filePath, config);
+        System.out.println("Done");
+    }
+
+    // Handles one events file against the loaded network with a handler of its own. The network and tile index
+    // are only read, so several files can be handled at the same time.
+    AgentTrackerEventHandler readEvents(String filePath, AgentTrackerConfig config) {
+        if (network == null) {
+            throw new IllegalStateException("No network loaded");
+        }
+        NetworkSnapshot network = this.network;
+        LinkTileIndex tileIndex = network.tileIndex();
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        TrackerMetrics metrics = new TrackerMetrics();
+        metrics.addPhase("networkLoad", networkLoadNanos);
 
         // Register your event handler.
-        AgentTrackerEventHandler handler = new AgentTrackerEventHandler(network, ignorePatterns);
-        eventsManager.addHandler(handler);
-        // Create an events reader and connect it with the manager.
-        MatsimEventsReader reader = new MatsimEventsReader(eventsManager);
+        AgentTrackerEventHandler handler = new AgentTrackerEventHandler(network, tileIndex, ignorePatterns, config,
+                metrics);
+        ShardedEventHandler shardedHandler = null;
+        if (config.getShards() > 1 && config.getIncrementalOutput() != null) {
+            // every shard only sees its own persons, so no shard can tell when a bin is complete
+            throw new IllegalArgumentException("incrementalOutput needs a single shard");
+        }
+        if (config.getShards() > 1 && config.getCheckpointInterval() > 0) {
+            // the shards are at different events at any moment
+            throw new IllegalArgumentException("checkpoints need a single shard");
+        }
+        if (config.getCheckpointInterval() > 0) {
+            // reads the file itself to know the offset of every event, resuming from a previous checkpoint
+            TrackerEventHandler target = new MetricsEventHandler(handler, metrics, config.getProgressInterval());
+            TrackerMetrics.PhaseEvent phase = TrackerMetrics.beginPhase("readEvents");
+            try {
+                new CheckpointedEventsReader(handler, target, network, config, metrics, filePath).read();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            metrics.record(phase);
+            System.out.println(metrics.summary());
+            return handler;
+        }
+        TrackerEventHandler target;
+        if (config.getShards() > 1) {
+            // the reader thread only dispatches, every shard handles its own persons on its own thread
+            shardedHandler = new ShardedEventHandler(config.getShards(),
+                    () -> new AgentTrackerEventHandler(network, tileIndex, ignorePatterns, config));
+            target = new MetricsEventHandler(shardedHandler, metrics, config.getProgressInterval());
+        } else {
+            target = new MetricsEventHandler(handler, metrics, config.getProgressInterval());
+        }
 
         // Now read the file.
-        reader.readFile(filePath);
+        TrackerMetrics.PhaseEvent phase;
+        if (config.isPipelinedReader() && PipelinedEventsReader.canRead(filePath)) {
+            // decompressing and parsing run on threads of their own, ahead of the handler
+            phase = TrackerMetrics.beginPhase("readEvents");
+            PipelinedEventsReader reader = new PipelinedEventsReader(target, config.getSampleRate());
+            reader.readFile(filePath);
+            if (config.getSampleRate() < 1) {
+                System.out.println("Sample of " + config.getSampleRate() + ": " + reader.unsampledEvents()
+                        + " events of persons outside the sample were dropped while reading");
+            }
+        } else {
+            // Create an events reader and connect it with the manager.
+            eventsManager.addHandler(target);
+            MatsimEventsReader reader = new MatsimEventsReader(eventsManager);
+            phase = TrackerMetrics.beginPhase("readEvents");
+            reader.readFile(filePath);
+        }
+        if (shardedHandler != null) {
+            shardedHandler.finish(handler);
+            metrics.setShardHandling(shardedHandler.shardCount(), shardedHandler.handlingNanos());
+            // the shard threads are done, so their states are final
+            metrics.setShardGauges(shardedHandler);
+        }
+        metrics.record(phase);
+        System.out.println(metrics.summary());
+        return handler;
+    }
 
-        System.out.println("Done");
+    // Compares two events files on one network, e.g. a base scenario and a variant, and streams the population
+    // differences per tile and bin to outputPath, see ScenarioComparison. Neither scenario's aggregate is kept whole
+    // or written; the handler of the last iterateEvents is not touched.
+    public void compareEvents(String baseEventsPath, String variantEventsPath, String networkPath,
+            String outputPath) {
+        for (String filePath : new String[] { baseEventsPath, variantEventsPath }) {
+            if (!PipelinedEventsReader.canRead(filePath)) {
+                throw new IllegalArgumentException("Comparisons need .xml or .xml.gz events files, got " + filePath);
+            }
+        }
+        if (config.getShards() > 1) {
+            // the merge hands the events of both files to their handlers in time order on one thread
+            throw new IllegalArgumentException("Comparisons need a single shard");
+        }
+        loadNetwork(networkPath);
+        AgentTrackerConfig comparisonConfig = config.copy();
+        comparisonConfig.setKeepPersonSegments(false);
+        comparisonConfig.setIncrementalOutput(null);
+        comparisonConfig.setCheckpointInterval(0);
+        comparisonConfig.setRunReport(null);
+        new ScenarioComparison(network, ignorePatterns, comparisonConfig).run(baseEventsPath, variantEventsPath,
+                outputPath);
+    }
 
-        // handler.saveToCSV("scenarios\\ASIMOW\\base\\agent_tracker.csv");
-        // handler.SavePopulationPertilePerhourJson("scenarios\\ASIMOW\\5km_streets\\agent_tracker_tiles.json");
-        handler.savePersonsTimeListToJson("C:\\Users\\ReLUT_PC\\Desktop\\Matsim-ASIMOW\\scenarios\\ASIMOW\\base\\agent_tracker_tiles.json");
-        // handler.savePersonToTileMap("scenarios\\ASIMOW\\base\\agent_tracker_details.json");
-        handler.savePersonToTileMapCsv("C:\\Users\\ReLUT_PC\\Desktop\\Matsim-ASIMOW\\scenarios\\ASIMOW\\base\\agent_tracker_details.csv");
+    private AgentTrackerEventHandler handler() {
+        if (handler == null) {
+            throw new IllegalStateException("No events read yet, call iterateEvents first");
+        }
+        return handler;
+    }
+
+    public void savePersonsTimeListToJson(String filePath) {
+        handler().savePersonsTimeListToJson(filePath);
+    }
+
+    public void savePersonToTileMapCsv(String filePath) {
+        handler().savePersonToTileMapCsv(filePath);
+    }
+
+    public void savePopulationRaster(String filePath) {
+        handler().savePopulationRaster(filePath);
+    }
+
+    // Several outputs in one pass over the segments, see TrackerExport.
+    public void export(TrackerExport export) {
+        handler().export(export);
+    }
+
+    // Index over the segments of the last iterateEvents for queries by tile, time and person; build it before the exports.
+    public SegmentQueryIndex buildQueryIndex() {
+        return handler().buildQueryIndex();
+    }
+
+    // Releases the off-heap segments of the last iterateEvents once all exports are written.
+    public void close() {
+        if (handler != null) {
+            handler.close();
+            handler = null;
+        }
     }
 
     public static void main(String[] args) {
@@ -68,5 +210,11 @@ public class AgentTracker {
         AgentTracker iterator = new AgentTracker(new String[] { "back.*" }, true);
         iterator.iterateEvents(filePath, networkPath);
 
+        // handler.saveToCSV("scenarios\\ASIMOW\\base\\agent_tracker.csv");
+        // handler.SavePopulationPertilePerhourJson("scenarios\\ASIMOW\\5km_streets\\agent_tracker_tiles.json");
+        iterator.savePersonsTimeListToJson("C:\\Users\\ReLUT_PC\\Desktop\\Matsim-ASIMOW\\scenarios\\ASIMOW\\base\\agent_tracker_tiles.json");
+        // handler.savePersonToTileMap("scenarios\\ASIMOW\\base\\agent_tracker_details.json");
+        iterator.savePersonToTileMapCsv("C:\\Users\\ReLUT_PC\\Desktop\\Matsim-ASIMOW\\scenarios\\ASIMOW\\base\\agent_tracker_details.csv");
+        iterator.close();
     }
 }
@@ -0,0 +1,300 @@
+package org.matsim.project;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs the tracker over many events files that share one network, e.g. the variants or iterations of a scenario.
+// The network and its tile decomposition are loaded once; the files are handled concurrently, each with its own
+// handler, on a fixed number of threads. A file only starts once its estimated memory fits into the budget.
+public class AgentTrackerBatch {
+
+    public static final String TILES_FILE = "agent_tracker_tiles.json";
+    public static final String DETAILS_FILE = "agent_tracker_details.csv";
+    public static final String REPORT_FILE = "agent_tracker_report.json";
+    public static final String CHECKPOINT_FILE = "agent_tracker.checkpoint";
+
+    // rough heap use of the handler per byte of events XML, and the usual compression of .gz events files
+    private static final double MEMORY_PER_EVENTS_BYTE = 1.0;
+    private static final int GZIP_RATIO = 10;
+
+    private final AgentTracker tracker;
+    private final int threads;
+    private final long memoryBudget;
+
+    public static class Job {
+        public final String eventsPath;
+        public final String outputDirectory;
+
+        public Job(String eventsPath, String outputDirectory) {
+            this.eventsPath = eventsPath;
+            this.outputDirectory = outputDirectory;
+        }
+    }
+
+    // memoryBudget in bytes; 0 uses 80% of the heap that is still free once the network is loaded
+    public AgentTrackerBatch(AgentTracker tracker, int threads, long memoryBudget) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got " + threads);
+        }
+        this.tracker = tracker;
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+    }
+
+    // Writes TILES_FILE, and DETAILS_FILE if person segments are kept, into every job's output directory.
+    // A failing job does not stop the others; failures are thrown together once all jobs are done.
+    public void run(String networkPath, List<Job> jobs) {
+        tracker.loadNetwork(networkPath);
+
+        // permits are megabytes, a Semaphore only counts in ints
+        int budgetMb = (int) Math.max(1, (memoryBudget > 0 ? memoryBudget : freeHeap() * 8 / 10) >> 20);
+        Semaphore memory = new Semaphore(budgetMb, true);
+        System.out.println("Running " + jobs.size() + " events files on " + threads + " threads within "
+                + budgetMb + " MB");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (Job job : jobs) {
+                // a job larger than the whole budget still runs, but alone
+                int weightMb = (int) Math.min(budgetMb, Math.max(1, estimateMemory(job) >> 20));
+                // acquired here and not in the task, so queued jobs keep their order and do not hold threads
+                memory.acquire(weightMb);
+                futures.add(executor.submit(() -> {
+                    try {
+                        runJob(job);
+                    } finally {
+                        memory.release(weightMb);
+                    }
+                    return null;
+                }));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new RuntimeException(e);
+        }
+        executor.shutdown();
+
+        RuntimeException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (Exception e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                System.out.println("Failed: " + jobs.get(i).eventsPath + ": " + cause);
+                if (failure == null) {
+                    failure = new RuntimeException("Batch job failed: " + jobs.get(i).eventsPath, cause);
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void runJob(Job job) {
+        File directory = new File(job.outputDirectory);
+        directory.mkdirs();
+        AgentTrackerConfig config = tracker.getConfig().copy();
+        if (config.getIncrementalOutput() != null) {
+            // completed bins of every job go to its own directory
+            config.setIncrementalOutput(new File(directory, TILES_FILE).getPath());
+        }
+        if (config.getRunReport() != null) {
+            config.setRunReport(new File(directory, REPORT_FILE).getPath());
+        }
+        if (config.getCheckpointInterval() > 0) {
+            // a rerun of the batch continues every unfinished job from its own checkpoint
+            config.setCheckpointPath(new File(directory, CHECKPOINT_FILE).getPath());
+        }
+
+        AgentTrackerEventHandler handler = tracker.readEvents(job.eventsPath, config);
+        try {
+            TrackerExport export = new TrackerExport().json(new File(directory, TILES_FILE).getPath());
+            if (config.isKeepPersonSegments()) {
+                export.csv(new File(directory, DETAILS_FILE).getPath());
+            }
+            handler.export(export);
+        } finally {
+            handler.close();
+        }
+        System.out.println("Done: " + job.eventsPath);
+    }
+
+    static long estimateMemory(Job job) {
+        long length = new File(job.eventsPath).length();
+        if (job.eventsPath.endsWith(".gz")) {
+            length *= GZIP_RATIO;
+        }
+        return (long) (length * MEMORY_PER_EVENTS_BYTE);
+    }
+
+    private static long freeHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    // Jobs file: one "<events file> <output directory>" pair per line, lines starting with # are skipped. Paths with
+    // spaces are either separated by a tab or put in double quotes.
+    static List<Job> readJobs(String jobsPath) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(jobsPath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> parts = splitJob(line);
+                if (parts.size() != 2) {
+                    throw new IOException("Expected <events file> <output directory>: " + line);
+                }
+                jobs.add(new Job(parts.get(0), parts.get(1)));
+            }
+        }
+        return jobs;
+    }
+
+    private static final Pattern JOB_PART = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+    static List<String> splitJob(String line) {
+        List<String> parts = new ArrayList<>();
+        if (line.indexOf('\t') >= 0) {
+            for (String part : line.split("\t")) {
+                if (!part.trim().isEmpty()) {
+                    parts.add(part.trim());
+                }
+            }
+            return parts;
+        }
+        Matcher matcher = JOB_PART.matcher(line);
+        while (matcher.find()) {
+            parts.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+        }
+        return parts;
+    }
+
+    private static final String USAGE = "Usage: AgentTrackerBatch <network file> <jobs file> [threads] "
+            + "[memory budget in MB] [options]\n"
+            + "  --ignore=<regex>         ignore persons whose id matches, repeatable (default: back.*)\n"
+            + "  --no-ignore-pt           keep the pt_.* drivers\n"
+            + "  --tileSize=<m>           --binWidth=<s>           --shards=<n>            --sampleRate=<r>\n"
+            + "  --boundingBox=<minX,minY,maxX,maxY>                --ignorePrefixes=<a,b,...>\n"
+            + "  --checkpointInterval=<s> --no-person-segments     --incremental           --report";
+
+    // Usage: see USAGE. Options start with -- and may come anywhere; the others are positional.
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        List<String> ignoreRegex = new ArrayList<>();
+        List<String> configOptions = new ArrayList<>();
+        boolean ignorePt = true;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            } else if (arg.startsWith("--ignore=")) {
+                ignoreRegex.add(arg.substring("--ignore=".length()));
+            } else if (arg.equals("--no-ignore-pt")) {
+                ignorePt = false;
+            } else {
+                configOptions.add(arg);
+            }
+        }
+        if (ignoreRegex.isEmpty()) {
+            ignoreRegex.add("back.*");
+        }
+        AgentTrackerBatch batch;
+        try {
+            // invalid patterns, options and numbers all end up here
+            AgentTracker tracker = new AgentTracker(ignoreRegex.toArray(new String[0]), ignorePt);
+            AgentTrackerConfig config = tracker.getConfig();
+            for (String option : configOptions) {
+                configure(config, option);
+            }
+            // checked here, as every job would fail on it
+            if (config.getShards() > 1 && config.getIncrementalOutput() != null) {
+                throw new IllegalArgumentException("--incremental needs a single shard");
+            }
+            if (config.getShards() > 1 && config.getCheckpointInterval() > 0) {
+                throw new IllegalArgumentException("--checkpointInterval needs a single shard");
+            }
+            if (positional.size() < 2 || positional.size() > 4) {
+                throw new IllegalArgumentException("Expected a network file, a jobs file and at most two numbers");
+            }
+            int threads = positional.size() > 2 ? Integer.parseInt(positional.get(2))
+                    : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            long memoryBudget = positional.size() > 3 ? Long.parseLong(positional.get(3)) << 20 : 0;
+            batch = new AgentTrackerBatch(tracker, threads, memoryBudget);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        batch.run(positional.get(0), readJobs(positional.get(1)));
+    }
+
+    private static void configure(AgentTrackerConfig config, String option) {
+        int equals = option.indexOf('=');
+        String name = equals < 0 ? option.substring(2) : option.substring(2, equals);
+        String value = equals < 0 ? null : option.substring(equals + 1);
+        switch (name) {
+            case "tileSize":
+                config.setTileSize(Integer.parseInt(required(name, value)));
+                break;
+            case "binWidth":
+                config.setBinWidth(Integer.parseInt(required(name, value)));
+                break;
+            case "shards":
+                config.setShards(Integer.parseInt(required(name, value)));
+                break;
+            case "sampleRate":
+                config.setSampleRate(Double.parseDouble(required(name, value)));
+                break;
+            case "boundingBox":
+                String[] box = required(name, value).split(",");
+                if (box.length != 4) {
+                    throw new IllegalArgumentException("--boundingBox needs minX,minY,maxX,maxY, got " + value);
+                }
+                config.setBoundingBox(Double.parseDouble(box[0]), Double.parseDouble(box[1]),
+                        Double.parseDouble(box[2]), Double.parseDouble(box[3]));
+                break;
+            case "ignorePrefixes":
+                config.setIgnorePrefixes(required(name, value).split(","));
+                break;
+            case "checkpointInterval":
+                config.setCheckpointInterval(Integer.parseInt(required(name, value)));
+                break;
+            case "no-person-segments":
+                config.setKeepPersonSegments(false);
+                break;
+            case "incremental":
+                // the path is replaced by one in each job's output directory
+                config.setIncrementalOutput(TILES_FILE);
+                break;
+            case "report":
+                config.setRunReport(REPORT_FILE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    private static String required(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("--" + name + " needs a value");
+        }
+        return value;
+    }
+}
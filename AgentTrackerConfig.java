@@ -0,0 +1,288 @@
+package org.matsim.project;
+
+// Options of a tracker run that are shared by the tracker and its event handlers.
+public class AgentTrackerConfig {
+
+    // edge length of the square tiles in metres
+    private int tileSize = 100;
+
+    // coarser tile sizes rolled up from the tileSize aggregate, each a multiple of tileSize; empty for none
+    private int[] pyramidTileSizes = new int[0];
+
+    // width of the time bins of the tile/bin JSON in seconds
+    private int binWidth = 3600;
+
+    // base path for completed bins written during the run (<path>_bin<k>.json); null writes everything at the end
+    private String incrementalOutput = null;
+
+    // longest time in seconds a segment may reach back behind the event clock; a bin is written once the clock
+    // passes its end plus this
+    private int maxOpenSegment = 10 * 3600;
+
+    // persons whose id starts with one of these are not tracked, in addition to the ignore regexes
+    private String[] ignorePrefixes = new String[0];
+
+    // minX, minY, maxX, maxY; persons whose first located event lies outside are not tracked; null for none
+    private double[] boundingBox = null;
+
+    // fraction of the persons tracked, chosen by a hash of the person id; populations are scaled up by its inverse
+    private double sampleRate = 1;
+
+    // legs with these modes are not tracked
+    private String[] ignoredLegModes = { "walk", "bicycle" };
+
+    // keep every person's tile segments for savePersonToTileMapCsv; false only aggregates tiles x hours
+    private boolean keepPersonSegments = true;
+
+    // directory for the memory-mapped segment file; null keeps the segments in direct memory
+    private String segmentStoreDirectory = null;
+
+    // number of parallel handler shards; 1 handles all events on the reader thread
+    private int shards = 1;
+
+    // read .xml and .xml.gz events with the pipelined reader; false uses MatsimEventsReader
+    private boolean pipelinedReader = true;
+
+    // indent the tile/hour JSON; switch off for smaller, faster exports
+    private boolean prettyJson = true;
+
+    // number of person CSV files written in parallel, split by person id hash; 1 writes a single file
+    private int csvPartitions = 1;
+
+    // seconds between progress lines while the events are read; 0 for none
+    private int progressInterval = 30;
+
+    // path of the JSON run report written when the handler is closed; null for none
+    private String runReport = null;
+
+    // seconds of event time between checkpoints of the handler state; 0 for none (needs a single shard)
+    private int checkpointInterval = 0;
+
+    // checkpoint file; null puts it next to the events file (<events file>.checkpoint)
+    private String checkpointPath = null;
+
+    // seconds of simulation time between published live tile occupancies when attached to a running simulation
+    private int liveInterval = 60;
+
+    // Independent copy, e.g. for one job of a batch that gets its own output paths.
+    public AgentTrackerConfig copy() {
+        AgentTrackerConfig copy = new AgentTrackerConfig();
+        copy.tileSize = tileSize;
+        copy.pyramidTileSizes = pyramidTileSizes.clone();
+        copy.binWidth = binWidth;
+        copy.incrementalOutput = incrementalOutput;
+        copy.maxOpenSegment = maxOpenSegment;
+        copy.ignorePrefixes = ignorePrefixes.clone();
+        copy.boundingBox = boundingBox == null ? null : boundingBox.clone();
+        copy.sampleRate = sampleRate;
+        copy.ignoredLegModes = ignoredLegModes.clone();
+        copy.keepPersonSegments = keepPersonSegments;
+        copy.segmentStoreDirectory = segmentStoreDirectory;
+        copy.shards = shards;
+        copy.pipelinedReader = pipelinedReader;
+        copy.prettyJson = prettyJson;
+        copy.csvPartitions = csvPartitions;
+        copy.progressInterval = progressInterval;
+        copy.runReport = runReport;
+        copy.checkpointInterval = checkpointInterval;
+        copy.checkpointPath = checkpointPath;
+        copy.liveInterval = liveInterval;
+        return copy;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be at least 1, got " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    public int[] getPyramidTileSizes() {
+        return pyramidTileSizes;
+    }
+
+    public void setPyramidTileSizes(int... pyramidTileSizes) {
+        this.pyramidTileSizes = pyramidTileSizes.clone();
+    }
+
+    public int getBinWidth() {
+        return binWidth;
+    }
+
+    public void setBinWidth(int binWidth) {
+        if (binWidth < 1) {
+            throw new IllegalArgumentException("binWidth must be at least 1, got " + binWidth);
+        }
+        this.binWidth = binWidth;
+    }
+
+    public String getIncrementalOutput() {
+        return incrementalOutput;
+    }
+
+    public void setIncrementalOutput(String incrementalOutput) {
+        this.incrementalOutput = incrementalOutput;
+    }
+
+    public int getMaxOpenSegment() {
+        return maxOpenSegment;
+    }
+
+    public void setMaxOpenSegment(int maxOpenSegment) {
+        if (maxOpenSegment < 0) {
+            throw new IllegalArgumentException("maxOpenSegment must not be negative, got " + maxOpenSegment);
+        }
+        this.maxOpenSegment = maxOpenSegment;
+    }
+
+    public String[] getIgnorePrefixes() {
+        return ignorePrefixes;
+    }
+
+    public void setIgnorePrefixes(String... ignorePrefixes) {
+        this.ignorePrefixes = ignorePrefixes.clone();
+    }
+
+    public double[] getBoundingBox() {
+        return boundingBox;
+    }
+
+    public void setBoundingBox(double minX, double minY, double maxX, double maxY) {
+        if (minX > maxX || minY > maxY) {
+            throw new IllegalArgumentException("Empty bounding box " + minX + "," + minY + "," + maxX + "," + maxY);
+        }
+        this.boundingBox = new double[] { minX, minY, maxX, maxY };
+    }
+
+    public void clearBoundingBox() {
+        this.boundingBox = null;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    // e.g. 0.1 for a quick preview on a tenth of the persons; the same rate always picks the same persons
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate > 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sampleRate must be in (0, 1], got " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public String[] getIgnoredLegModes() {
+        return ignoredLegModes;
+    }
+
+    public void setIgnoredLegModes(String... ignoredLegModes) {
+        this.ignoredLegModes = ignoredLegModes.clone();
+    }
+
+    public boolean isKeepPersonSegments() {
+        return keepPersonSegments;
+    }
+
+    public void setKeepPersonSegments(boolean keepPersonSegments) {
+        this.keepPersonSegments = keepPersonSegments;
+    }
+
+    public String getSegmentStoreDirectory() {
+        return segmentStoreDirectory;
+    }
+
+    public void setSegmentStoreDirectory(String segmentStoreDirectory) {
+        this.segmentStoreDirectory = segmentStoreDirectory;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        if (shards < 1 || shards > ShardedEventHandler.MAX_SHARDS) {
+            throw new IllegalArgumentException("shards must be between 1 and " + ShardedEventHandler.MAX_SHARDS
+                    + ", got " + shards);
+        }
+        this.shards = shards;
+    }
+
+    public boolean isPipelinedReader() {
+        return pipelinedReader;
+    }
+
+    public void setPipelinedReader(boolean pipelinedReader) {
+        this.pipelinedReader = pipelinedReader;
+    }
+
+    public boolean isPrettyJson() {
+        return prettyJson;
+    }
+
+    public void setPrettyJson(boolean prettyJson) {
+        this.prettyJson = prettyJson;
+    }
+
+    public int getCsvPartitions() {
+        return csvPartitions;
+    }
+
+    public void setCsvPartitions(int csvPartitions) {
+        if (csvPartitions < 1) {
+            throw new IllegalArgumentException("csvPartitions must be at least 1, got " + csvPartitions);
+        }
+        this.csvPartitions = csvPartitions;
+    }
+
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+
+    public void setProgressInterval(int progressInterval) {
+        if (progressInterval < 0) {
+            throw new IllegalArgumentException("progressInterval must not be negative, got " + progressInterval);
+        }
+        this.progressInterval = progressInterval;
+    }
+
+    public String getRunReport() {
+        return runReport;
+    }
+
+    public void setRunReport(String runReport) {
+        this.runReport = runReport;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 0) {
+            throw new IllegalArgumentException("checkpointInterval must not be negative, got " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public String getCheckpointPath() {
+        return checkpointPath;
+    }
+
+    public void setCheckpointPath(String checkpointPath) {
+        this.checkpointPath = checkpointPath;
+    }
+
+    public int getLiveInterval() {
+        return liveInterval;
+    }
+
+    public void setLiveInterval(int liveInterval) {
+        if (liveInterval < 1) {
+            throw new IllegalArgumentException("liveInterval must be at least 1, got " + liveInterval);
+        }
+        this.liveInterval = liveInterval;
+    }
+}
@@ -13,17 +13,8 @@ import org.matsim.api.core.v01.events.PersonArrivalEvent;
 import org.matsim.vehicles.Vehicle;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
-import org.matsim.api.core.v01.network.Network;
 import org.apache.logging.log4j.core.util.SystemClock;
 import org.matsim.api.core.v01.Coord;
-import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
-import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
-import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
-import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
-import org.matsim.api.core.v01.events.handler.ActivityStartEventHandler;
-import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
-import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
-import org.matsim.api.core.v01.events.handler.PersonArrivalEventHandler;
 import org.matsim.core.api.experimental.events.handler.TeleportationArrivalEventHandler;
 
 import org.matsim.api.core.v01.population.Person;
@@ -33,56 +24,123 @@ import java.util.regex.Pattern;
 import java.util.function.DoubleFunction;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import org.matsim.project.utils.BresenhamLine;
+import org.matsim.project.utils.GridTraversal;
 
 import org.matsim.core.utils.collections.Tuple;
-import org.matsim.api.core.v01.network.Node;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.io.BufferedWriter;
 
 // Define a custom handler for LinkEnterEvent.
-class AgentTrackerEventHandler
-        implements LinkEnterEventHandler, LinkLeaveEventHandler, PersonEntersVehicleEventHandler,
-        PersonLeavesVehicleEventHandler, ActivityStartEventHandler, ActivityEndEventHandler,
-        PersonDepartureEventHandler, PersonArrivalEventHandler {
+class AgentTrackerEventHandler implements TrackerEventHandler {
 
-    private final Network network;
-    private final Pattern[] ignorePatterns;
+    // duration assumed for the last activity of a person, which has no end event
+    private static final int FINAL_ACTIVITY_DURATION = 10 * 3600;
 
-    // vehicle to list of persons map 
-    private final Map<Id<Vehicle>, List<Id<Person>>> vehicleToPersonMap = new HashMap<>();
+    private final NetworkSnapshot network;
+    private final LinkTileIndex tileIndex;
+    private final PersonAdmissionFilter admissionFilter;
+    private final AgentTrackerConfig config;
+    private final boolean keepPersonSegments;
+    private final int tileSize;
 
-    // Link to LinkCoords map
-    private final Map<Id<Link>, LinkCoords> linkCoordsMap = new HashMap<>();
+    // persons in every vehicle
+    private final VehicleOccupancy vehicleOccupancy = new VehicleOccupancy();
 
-    // Link to Grids map
-    Map<String, Tuple<Tuple<Integer, Integer>, Double>[]> linkToGridsWithRatio = new HashMap<>();
+    // split of link traversals over tiles, and the distinct start times (with their counts) of the occupants
+    // leaving a link, who share all pieces of the traversal
+    private final LinkTileIndex.Traversal traversal;
+    private double[] groupTimes = new double[8];
+    private int[] groupWeights = new int[8];
 
-    // person to [tile, time] map
-    private final Map<Id<Person>, List<Tuple<String, Tuple<Integer, Integer>>>> personToTileTimeMap = new HashMap<>();
-
-    // Person to list of PersonEvent map for xfunction and yfunction
-    public final Map<Id<Person>, List<PersonEvent>> personToEventMap = new HashMap<>();
+    // Link to LinkCoords map
+    private final Map<Id<Link>, LinkCoords> linkCoordsMap = new HashMap<>();
+    private long linkCacheHits = 0;
+    private long linkCacheMisses = 0;
+
+    // counters and timings of the run, reported when the handler is closed
+    private final TrackerMetrics metrics;
+
+    // person to [tile, time] segments off the heap, only kept if per-person segments are needed
+    private final SegmentStore segmentStore;
+    // checkpoints: store records below loggedRecords are in the segment log, whose first segmentLogLength bytes
+    // are valid; persons are referenced there by the order they first appeared in, person index -> ref + 1
+    private long loggedRecords = 0;
+    private long segmentLogLength = 0;
+    private int[] segmentLogRefs = new int[0];
+    private int segmentLogPersons = 0;
+
+    // tile x bin population, filled as soon as a segment is produced
+    private final TileHourAccumulator tileHourAccumulator;
+
+    // incremental mode: completed bins are written to incrementalOutput while the events are read
+    private final String incrementalOutput;
+    private final int maxOpenSegment;
+    // person index -> time up to which the open activity was already added to the written bins
+    private int[] activityCreditedUntil = new int[0];
+    // whether the open last activities were added to the store by an export
+    private boolean openActivitiesStored = false;
+
+    // current state of every person: last tracked event, its time and link, and the vehicle
+    private final AgentStates agentStates = new AgentStates();
+
+    // persons per tile right now, only kept when attached to a running simulation
+    private LiveTileOccupancy liveOccupancy = null;
 
     // Person to ActivityStartEvent map
     public final Map<Id<Person>, ActivityStartEvent> lastActivityStartEventMap = new HashMap<>();
 
-    public AgentTrackerEventHandler(Network network, Pattern[] ignorePatterns) {
+    public AgentTrackerEventHandler(NetworkSnapshot network, LinkTileIndex tileIndex, Pattern[] ignorePatterns,
+            AgentTrackerConfig config) {
+        this(network, tileIndex, ignorePatterns, config, new TrackerMetrics());
+    }
+
+    public AgentTrackerEventHandler(NetworkSnapshot network, LinkTileIndex tileIndex, Pattern[] ignorePatterns,
+            AgentTrackerConfig config, TrackerMetrics metrics) {
+        this.metrics = metrics;
         this.network = network;
-        this.ignorePatterns = ignorePatterns;
+        this.tileIndex = tileIndex;
+        this.traversal = tileIndex.traversal();
+        this.admissionFilter = new PersonAdmissionFilter(network, ignorePatterns, config);
+        this.config = config;
+        this.keepPersonSegments = config.isKeepPersonSegments();
+        this.tileSize = config.getTileSize();
+        this.tileHourAccumulator = new TileHourAccumulator(config.getBinWidth(), config.getSampleRate());
+        this.incrementalOutput = config.getIncrementalOutput();
+        this.maxOpenSegment = config.getMaxOpenSegment();
+        if (tileIndex.getTileSize() != tileSize) {
+            throw new IllegalArgumentException("Link tile index has tile size " + tileIndex.getTileSize()
+                    + ", the configured tile size is " + tileSize);
+        }
+        for (int pyramidTileSize : config.getPyramidTileSizes()) {
+            if (pyramidTileSize <= tileSize || pyramidTileSize % tileSize != 0) {
+                throw new IllegalArgumentException("Pyramid tile size " + pyramidTileSize
+                        + " is not a larger multiple of the tile size " + tileSize);
+            }
+        }
+        if (!keepPersonSegments) {
+            this.segmentStore = null;
+        } else if (config.getSegmentStoreDirectory() != null) {
+            this.segmentStore = new SegmentStore(new File(config.getSegmentStoreDirectory()));
+        } else {
+            this.segmentStore = new SegmentStore();
+        }
     }
 
     class LinkCoords {
@@ -97,102 +155,194 @@ class AgentTrackerEventHandler
         }
     }
 
-    private List<Tuple<String, Tuple<Integer, Integer>>> getOrCreateTileTimeList(Id<Person> personId) {
-        if (!personToTileTimeMap.containsKey(personId)) {
-            personToTileTimeMap.put(personId, new ArrayList<>());
-        }
-        return personToTileTimeMap.get(personId);
+    public static Tuple<Tuple<Integer, Integer>, Double>[] calculateGridCellsWithRatio(double x1, double y1, double x2,
+            double y2) {
+        return calculateGridCellsWithRatio(x1, y1, x2, y2, 100);
     }
 
-    public Tuple<Tuple<Integer, Integer>, Double>[] calculateGridCellsWithRatio(double x1, double y1, double x2,
-            double y2) {
-        // shift
-        int x_shift = (int) (x1 / 100) * 100;
-        int y_shift = (int) (y1 / 100) * 100;
-        x1 -= x_shift;
-        x2 -= x_shift;
-        y1 -= y_shift;
-        y2 -= y_shift;
-
-        double length = Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
-
-        // Calculate the grid cell coordinates
-        Set<BresenhamLine.Pair> tiles = BresenhamLine.bresenhamLine((int) x1, (int) y1, (int) x2, (int) y2, 100, 1);
-        double m = ((double) y2 - y1) / ((double) x2 - x1); // slope (y2-y1)/(x2-x1)
-        double c = y1 - m * x1; // intercept y = mx + c
-
-        Tuple<Tuple<Integer, Integer>, Double>[] gridCellsWithRatio = new Tuple[tiles.size()];
+    // Tiles of the segment in travel order with the share of the segment length inside each of them.
+    public static Tuple<Tuple<Integer, Integer>, Double>[] calculateGridCellsWithRatio(double x1, double y1, double x2,
+            double y2, int tileSize) {
+        GridTraversal traversal = new GridTraversal(tileSize);
+        Tuple<Tuple<Integer, Integer>, Double>[] gridCellsWithRatio = new Tuple[traversal.count(x1, y1, x2, y2)];
+        traversal.reset(x1, y1, x2, y2);
         int i = 0;
-        for (BresenhamLine.Pair tile : tiles) {
-            Integer xGrid = (int) Math.floor(tile.x * 100);
-            Integer yGrid = (int) Math.floor(tile.y * 100);
-            Tuple<Integer, Integer> gridCell = new Tuple<>(xGrid, yGrid);
-            double dist = BresenhamLine.segmentInsideSquare(m, c, xGrid, yGrid, 100, (int) x1, (int) y1, (int) x2,
-                    (int) y2);
-            // shift back
-            gridCell = new Tuple<>(gridCell.getFirst() + x_shift, gridCell.getSecond() + y_shift);
-            gridCellsWithRatio[i] = new Tuple(gridCell, dist / length);
-            i++;
+        while (traversal.next()) {
+            gridCellsWithRatio[i++] = new Tuple<>(new Tuple<>(traversal.tileX(), traversal.tileY()),
+                    traversal.fraction());
         }
-
         return gridCellsWithRatio;
     }
 
-    public Tuple<Tuple<Integer, Integer>, Double>[] getOrCreateGridsWithRatio(String linkId) {
-        // Get the link's coordinates
-        if (linkToGridsWithRatio.containsKey(linkId)) {
-            return linkToGridsWithRatio.get(linkId);
+    // Activity segments only add what was not already credited to written bins, the store always gets all of it.
+    private void addActivitySegment(Id<Person> personId, Coord coord, int startTime, int endTime) {
+        int x = snap(coord.getX());
+        int y = snap(coord.getY());
+        tileHourAccumulator.add(x, y, Math.max(startTime, creditedUntil(personId)), endTime);
+        if (keepPersonSegments) {
+            segmentStore.append(personId.index(), x, y, startTime, endTime);
         }
+    }
 
-        Link link = network.getLinks().get(Id.create(linkId, Link.class));
-        Node fromNode = link.getFromNode();
-        Node toNode = link.getToNode();
+    private int creditedUntil(Id<Person> personId) {
+        int index = personId.index();
+        return index < activityCreditedUntil.length ? activityCreditedUntil[index] : 0;
+    }
 
-        double x1 = fromNode.getCoord().getX();
-        double y1 = fromNode.getCoord().getY();
-        double x2 = toNode.getCoord().getX();
-        double y2 = toNode.getCoord().getY();
+    // Events come sorted by time, so once the clock is maxOpenSegment past the end of a bin nothing but open
+    // activities can still reach into it. Those are credited up to the end of the bin before it is written.
+    private void advanceClock(double time) {
+        if (liveOccupancy != null) {
+            liveOccupancy.advance(time);
+        }
+        if (incrementalOutput == null) {
+            return;
+        }
+        int binWidth = tileHourAccumulator.binWidth();
+        while (time - maxOpenSegment >= (tileHourAccumulator.freedBins() + 1) * (double) binWidth) {
+            int bin = tileHourAccumulator.freedBins();
+            completeBin(bin);
+            try {
+                writeBins(binPath(incrementalOutput, bin), bin, bin + 1);
+            } catch (IOException e) {
+                // the bin is kept, but reading stops: freeing it would lose its data for good
+                throw new UncheckedIOException("Writing bin " + bin + " to " + binPath(incrementalOutput, bin)
+                        + " failed", e);
+            }
+            tileHourAccumulator.free(bin + 1);
+        }
+    }
 
-        return calculateGridCellsWithRatio(x1, y1, x2, y2);
+    // Credits the open activities up to the end of the bin, after which it holds all it will get from events up to
+    // maxOpenSegment past its end. For callers that decide themselves when bins are complete, e.g. a comparison.
+    void completeBin(int bin) {
+        creditOpenActivities((bin + 1) * tileHourAccumulator.binWidth());
     }
 
-    class PersonEvent {
-        public String type;
-        public Id<Vehicle> vehicleId;
-        public Id<Link> linkId;
-        public Coord coord;
-        public double time;
-        public String xFunction;
-        public String yFunction;
+    TileHourAccumulator tileHourAccumulator() {
+        return tileHourAccumulator;
+    }
 
-        public PersonEvent(String type, Id<Vehicle> vehicleId, Id<Link> linkId, Coord coord,
-                double time, String xFunction, String yFunction) {
-            this.type = type;
-            this.vehicleId = vehicleId;
-            this.linkId = linkId;
-            this.coord = coord;
-            this.time = time;
-            this.xFunction = xFunction;
-            this.yFunction = yFunction;
+    private void creditOpenActivities(int until) {
+        for (Map.Entry<Id<Person>, ActivityStartEvent> entry : lastActivityStartEventMap.entrySet()) {
+            int index = entry.getKey().index();
+            if (index >= activityCreditedUntil.length) {
+                activityCreditedUntil = Arrays.copyOf(activityCreditedUntil,
+                        Math.max(index + 1, activityCreditedUntil.length * 2));
+            }
+            ActivityStartEvent activityStartEvent = entry.getValue();
+            int startTime = (int) activityStartEvent.getTime();
+            int from = Math.max(startTime, activityCreditedUntil[index]);
+            // an activity that never ends is assumed to last FINAL_ACTIVITY_DURATION, as in the export
+            int to = Math.min(until, startTime + FINAL_ACTIVITY_DURATION);
+            if (to > from) {
+                Coord coord = getLinkCoords(activityStartEvent.getLinkId()).mid;
+                tileHourAccumulator.add(snap(coord.getX()), snap(coord.getY()), from, to);
+                activityCreditedUntil[index] = to;
+            }
         }
     }
 
-    private boolean shouldIgnorePerson(String personId) {
-        for (Pattern pattern : ignorePatterns) {
-            if (pattern.matcher(personId).matches()) {
-                return true;
+    // The open last activities of the exports, added to the accumulator and the store once whichever exports run.
+    void addOpenActivities() {
+        creditOpenActivities(Integer.MAX_VALUE);
+        if (keepPersonSegments && !openActivitiesStored) {
+            openActivitiesStored = true;
+            for (Map.Entry<Id<Person>, ActivityStartEvent> entry : lastActivityStartEventMap.entrySet()) {
+                ActivityStartEvent activityStartEvent = entry.getValue();
+                Coord coord = getLinkCoords(activityStartEvent.getLinkId()).mid;
+                int time = (int) activityStartEvent.getTime();
+                segmentStore.append(entry.getKey().index(), snap(coord.getX()), snap(coord.getY()), time,
+                        time + FINAL_ACTIVITY_DURATION);
             }
         }
-        return false;
     }
 
+    private void writeBins(String filePath, int fromBin, int toBin) throws IOException {
+        TileHourJsonWriter writer = new TileHourJsonWriter(config.isPrettyJson());
+        writer.write(tileHourAccumulator, filePath, fromBin, toBin);
+        // coarser levels come from the aggregate, not from the events
+        for (int pyramidTileSize : config.getPyramidTileSizes()) {
+            writer.write(tileHourAccumulator.rollUp(pyramidTileSize, fromBin, toBin),
+                    levelPath(filePath, pyramidTileSize), fromBin, toBin);
+        }
+    }
+
+    // agent_tracker_tiles.json.gz -> agent_tracker_tiles_bin7.json.gz
+    static String binPath(String filePath, int bin) {
+        return insertBeforeExtension(filePath, "_bin" + bin);
+    }
+
+    private int snap(double coord) {
+        return GridTraversal.snap(coord, tileSize);
+    }
+
+    private static String tileKey(int x, int y) {
+        return x + "," + y;
+    }
 
     public LinkCoords getLinkCoords(Id<Link> linkId) {
-        if (!linkCoordsMap.containsKey(linkId)) {
-            Link link = network.getLinks().get(linkId);
-            linkCoordsMap.put(linkId, new LinkCoords(link.getFromNode().getCoord(), link.getToNode().getCoord()));
+        LinkCoords coords = linkCoordsMap.get(linkId);
+        if (coords == null) {
+            linkCacheMisses++;
+            coords = new LinkCoords(network.fromCoord(linkId), network.toCoord(linkId));
+            linkCoordsMap.put(linkId, coords);
+        } else {
+            linkCacheHits++;
         }
-        return linkCoordsMap.get(linkId);
+        return coords;
+    }
+
+    public void setLiveOccupancy(LiveTileOccupancy liveOccupancy) {
+        this.liveOccupancy = liveOccupancy;
+    }
+
+    private void moveLive(Id<Person> personId, Id<Link> linkId) {
+        if (liveOccupancy == null) {
+            return;
+        }
+        int tile = liveOccupancy.linkTile(linkId.index());
+        if (tile < 0) {
+            Coord coord = getLinkCoords(linkId).mid;
+            tile = liveOccupancy.addLink(linkId.index(), snap(coord.getX()), snap(coord.getY()));
+        }
+        liveOccupancy.move(personId.index(), tile);
+    }
+
+    public TrackerMetrics metrics() {
+        return metrics;
+    }
+
+    public long linkCacheHits() {
+        return linkCacheHits;
+    }
+
+    public long linkCacheMisses() {
+        return linkCacheMisses;
+    }
+
+    @Override
+    public long knownPersons() {
+        return agentStates.knownPersons();
+    }
+
+    @Override
+    public long travellingPersons() {
+        return agentStates.count(AgentStates.DEPARTURE) + agentStates.count(AgentStates.LINK_ENTER);
+    }
+
+    @Override
+    public long occupiedVehicles() {
+        return vehicleOccupancy.occupiedVehicles();
+    }
+
+    @Override
+    public long segmentCount() {
+        return segmentStore == null ? 0 : segmentStore.size();
+    }
+
+    public int tileCount() {
+        return tileHourAccumulator.tileCount();
     }
 
     @Override
@@ -202,100 +352,125 @@ class AgentTrackerEventHandler
 
     @Override
     public void handleEvent(LinkEnterEvent event) {
+        advanceClock(event.getTime());
         Id<Vehicle> vehicleId = event.getVehicleId();
-        // check if vehicleToPersonMap contains vehicleId and it is not empty
-        if (!vehicleToPersonMap.containsKey(vehicleId) || vehicleToPersonMap.get(vehicleId).isEmpty()) {
-            return;
-        }
-        List<Id<Person>> personIds = vehicleToPersonMap.get(vehicleId);
+        int occupants = vehicleOccupancy.count(vehicleId);
         Id<Link> linkId = event.getLinkId();
-        Coord coord = getLinkCoords(linkId).from;
         double time = event.getTime();
-        for (Id<Person> personId : personIds) {
-            PersonEvent personEvent = new PersonEvent(event.getEventType(), vehicleId, linkId, coord, time, "", "");
-            personToEventMap.get(personId).add(personEvent);
+        for (int i = 0; i < occupants; i++) {
+            Id<Person> personId = vehicleOccupancy.occupant(vehicleId, i);
+            agentStates.set(personId, AgentStates.LINK_ENTER, linkId, time);
+            moveLive(personId, linkId);
         }
     }
 
     @Override
     public void handleEvent(LinkLeaveEvent event) {
+        advanceClock(event.getTime());
         Id<Vehicle> vehicleId = event.getVehicleId();
-        // check if vehicleToPersonMap contains vehicleId and it is not empty
-        if (!vehicleToPersonMap.containsKey(vehicleId) || vehicleToPersonMap.get(vehicleId).isEmpty()) {
+        int occupants = vehicleOccupancy.count(vehicleId);
+        if (occupants == 0) {
             return;
         }
-        List<Id<Person>> personIds = vehicleToPersonMap.get(vehicleId);
         Id<Link> linkId = event.getLinkId();
-        Tuple<Tuple<Integer, Integer>, Double>[] gridsWithRatio = getOrCreateGridsWithRatio(linkId.toString());
+        tileIndex.checkLink(linkId);
 
-        int grids_len = gridsWithRatio.length;
+        // every occupant moves through the tiles with its own interval, e.g. passengers who boarded on this link,
+        // but usually all of them entered the link together, so the pieces are computed once per start time
         double time = event.getTime();
-        double time_passed = 0;
-        int time_interval = 0;
-        for (int i = 0; i < grids_len; i++) {
-            Tuple<Tuple<Integer, Integer>, Double> gridWithRatio = gridsWithRatio[i];
-            Tuple<Integer, Integer> grid = gridWithRatio.getFirst();
-            Double ratio = gridWithRatio.getSecond();
-            for (Id<Person> personId : personIds) {
-                PersonEvent lastPersonEvent = personToEventMap.get(personId)
-                        .get(personToEventMap.get(personId).size() - 1);
-                time_interval = (int) (event.getTime() - lastPersonEvent.time);
-                int tile_time = (int) (ratio * time_interval);
-                List<Tuple<String, Tuple<Integer, Integer>>> tileTimeLilst = getOrCreateTileTimeList(personId);
-                String tile = String.format("%s,%s", grid.getFirst(), grid.getSecond());
-                int time_start = (int) (time + time_passed);
-                tileTimeLilst.add(new Tuple(tile, new Tuple((int) time_start, (int) (time_start + tile_time))));
+        int groups = 0;
+        for (int i = 0; i < occupants; i++) {
+            Id<Person> personId = vehicleOccupancy.occupant(vehicleId, i);
+            if (agentStates.state(personId) == AgentStates.NONE) {
+                continue; // in the vehicle without a tracked start, nothing to measure from
+            }
+            double start = agentStates.time(personId);
+            int group = 0;
+            while (group < groups && groupTimes[group] != start) {
+                group++;
+            }
+            if (group == groups) {
+                if (groups == groupTimes.length) {
+                    groupTimes = Arrays.copyOf(groupTimes, groups * 2);
+                    groupWeights = Arrays.copyOf(groupWeights, groups * 2);
+                }
+                groupTimes[group] = start;
+                groupWeights[group] = 0;
+                groups++;
+            }
+            groupWeights[group]++;
+            if (keepPersonSegments) {
+                segmentStore.appendLink(personId.index(), linkId.index(), time, (int) (time - start));
             }
-            time_passed += ratio * time_interval;
         }
+        for (int group = 0; group < groups; group++) {
+            traversal.reset(linkId.index(), time, (int) (time - groupTimes[group]));
+            while (traversal.next()) {
+                tileHourAccumulator.add(traversal.tileX(), traversal.tileY(), traversal.start(), traversal.end(),
+                        groupWeights[group]);
+            }
+        }
+    }
 
-
+    // A person boarding before its first event with a link is admitted undecided when there is a bounding box. If a
+    // later event rejects it, it leaves its vehicle right away, so link events no longer move it.
+    private boolean admit(Id<Person> personId, Id<Link> linkId) {
+        if (admissionFilter.admit(personId, linkId)) {
+            return true;
+        }
+        int vehicle = agentStates.vehicleIndex(personId);
+        if (vehicle >= 0) {
+            vehicleOccupancy.remove(Id.get(vehicle, Vehicle.class), personId);
+            agentStates.leaveVehicle(personId);
+        }
+        return false;
     }
 
     @Override
     public void handleEvent(PersonEntersVehicleEvent event) {
-        if (shouldIgnorePerson(event.getPersonId().toString())) {
+        advanceClock(event.getTime());
+        if (!admit(event.getPersonId(), null)) {
             return;
         }
         Id<Vehicle> vehicleId = event.getVehicleId();
         Id<Person> personId = event.getPersonId();
-        if (!vehicleToPersonMap.containsKey(vehicleId)) {
-            vehicleToPersonMap.put(vehicleId, new ArrayList<>());
-        }
-        vehicleToPersonMap.get(vehicleId).add(personId);
-        if (!personToEventMap.containsKey(personId)) {
-            personToEventMap.put(personId, new ArrayList<>());
-        }
+        vehicleOccupancy.add(vehicleId, personId);
+        agentStates.markKnown(personId);
+        agentStates.enterVehicle(personId, vehicleId);
     }
 
     @Override
     public void handleEvent(PersonLeavesVehicleEvent event) {
-        if (shouldIgnorePerson(event.getPersonId().toString())) {
-            return;
-        }
-        Id<Vehicle> vehicleId = event.getVehicleId();
+        advanceClock(event.getTime());
+        // whatever the admission says by now: a person boarding undecided may have been rejected since
         Id<Person> personId = event.getPersonId();
-        if (!vehicleToPersonMap.containsKey(vehicleId)) {
-            return;
-        }
-        vehicleToPersonMap.get(vehicleId).remove(personId);
+        vehicleOccupancy.remove(event.getVehicleId(), personId);
+        agentStates.leaveVehicle(personId);
     }
 
     @Override
     public void handleEvent(ActivityStartEvent event) {
+        advanceClock(event.getTime());
+        if (!admit(event.getPersonId(), event.getLinkId())) {
+            return;
+        }
         lastActivityStartEventMap.put(event.getPersonId(), event);
+        moveLive(event.getPersonId(), event.getLinkId());
+        // back at an activity; persons not seen yet stay unknown, their first activity end starts at 0
+        if (agentStates.isKnown(event.getPersonId())) {
+            agentStates.set(event.getPersonId(), AgentStates.ACTIVITY, event.getLinkId(), event.getTime());
+        }
     }
 
     @Override
     public void handleEvent(ActivityEndEvent event) {
-        if (shouldIgnorePerson(event.getPersonId().toString())) {
+        advanceClock(event.getTime());
+        if (!admit(event.getPersonId(), event.getLinkId())) {
             return;
         }
         Id<Person> personId = event.getPersonId();
         double startTime = 0;
-        if (!personToEventMap.containsKey(personId)) {
-            personToEventMap.put(personId, new ArrayList<>());
-        } else {
+        if (agentStates.isKnown(personId)) {
             startTime = lastActivityStartEventMap.get(personId).getTime();
             // drop the last ActivityStartEvent
             lastActivityStartEventMap.remove(personId);
@@ -303,144 +478,456 @@ class AgentTrackerEventHandler
         Id<Link> linkId = event.getLinkId();
         Coord coord = getLinkCoords(linkId).mid;
         double time = event.getTime();
-        List<Tuple<String, Tuple<Integer, Integer>>> tileTimeLilst = getOrCreateTileTimeList(personId);
-        tileTimeLilst
-                .add(new Tuple(String.format("%s,%s", (int) coord.getX() / 100 * 100, (int) coord.getY() / 100 * 100),
-                        new Tuple((int) startTime, (int) (time))));
+        addActivitySegment(personId, coord, (int) startTime, (int) time);
+        if (personId.index() < activityCreditedUntil.length) {
+            activityCreditedUntil[personId.index()] = 0;
+        }
 
-        PersonEvent personEvent = new PersonEvent(event.getActType(), null, linkId, coord, startTime, "", "");
-        personToEventMap.get(personId).add(personEvent);
+        agentStates.set(personId, AgentStates.ACTIVITY, linkId, startTime);
+        moveLive(personId, linkId);
     }
 
     @Override
     public void handleEvent(PersonDepartureEvent event) {
-        if (event.getLegMode().equals("walk") || event.getLegMode().equals("bicycle")) {
-            return; // Skip handling walk and bicycle events
+        advanceClock(event.getTime());
+        if (admissionFilter.isIgnoredLegMode(event.getLegMode())) {
+            return; // Skip handling walk and bicycle events, or whatever modes are configured
         }
-        if (shouldIgnorePerson(event.getPersonId().toString())) {
+        if (!admit(event.getPersonId(), event.getLinkId())) {
             return;
         }
-        Id<Link> linkId = event.getLinkId();
-        Coord coord = getLinkCoords(linkId).mid;
-        double time = event.getTime();
-        PersonEvent personEvent = new PersonEvent("Walk_Bike", null, linkId, coord, time, "", "");
-        personToEventMap.get(event.getPersonId()).add(personEvent);
+        agentStates.set(event.getPersonId(), AgentStates.DEPARTURE, event.getLinkId(), event.getTime());
+        moveLive(event.getPersonId(), event.getLinkId());
     }
 
     @Override
     public void handleEvent(PersonArrivalEvent event) {
-        if (event.getLegMode().equals("walk") || event.getLegMode().equals("bicycle")) {
-            return; // Skip handling walk and bicycle events
+        advanceClock(event.getTime());
+        if (admissionFilter.isIgnoredLegMode(event.getLegMode())) {
+            return; // Skip handling walk and bicycle events, or whatever modes are configured
         }
-        if (shouldIgnorePerson(event.getPersonId().toString())) {
+        if (!admit(event.getPersonId(), event.getLinkId())) {
             return;
         }
-        PersonEvent lastPersonEvent = personToEventMap.get(event.getPersonId())
-                .get(personToEventMap.get(event.getPersonId()).size() - 1);
-        // if type is not PersonDepartureEvent, then ignore
-        if (!lastPersonEvent.type.equals("Walk_Bike")) {
+        moveLive(event.getPersonId(), event.getLinkId());
+        // if the last event is not the PersonDepartureEvent, then ignore
+        if (agentStates.state(event.getPersonId()) != AgentStates.DEPARTURE) {
             return;
         }
         Id<Link> linkId = event.getLinkId();
-        Coord coord = getLinkCoords(linkId).mid;
-        // Tuple<Tuple<Integer, Integer>, Double>[] gridsWithRatio =
-        // calculateGridCellsWithRatio(
-        // lastPersonEvent.coord.getX(),
-        // lastPersonEvent.coord.getY(), coord.getX(), coord.getY());
-        Tuple<Tuple<Integer, Integer>, Double>[] gridsWithRatio = getOrCreateGridsWithRatio(linkId.toString());
-
-        int grids_len = gridsWithRatio.length;
-        List<Tuple<String, Tuple<Integer, Integer>>> tileTimeLilst = getOrCreateTileTimeList(event.getPersonId());
+        tileIndex.checkLink(linkId);
 
         double time = event.getTime();
-        double time_passed = 0;
-        int time_interval = (int) (time - lastPersonEvent.time);
-        for (int i = 0; i < grids_len; i++) {
-            Tuple<Tuple<Integer, Integer>, Double> gridWithRatio = gridsWithRatio[i];
-            Tuple<Integer, Integer> grid = gridWithRatio.getFirst();
-            Double ratio = gridWithRatio.getSecond();
-            int tile_time = (int) (ratio * time_interval);
-            String tile = String.format("%s,%s", grid.getFirst(), grid.getSecond());
-            int time_start = (int) (time + time_passed);
-            tileTimeLilst.add(new Tuple(tile, new Tuple((int) time_start, (int) (time_start + tile_time))));
-            time_passed += ratio * time_interval;
+        int time_interval = (int) (time - agentStates.time(event.getPersonId()));
+        traversal.reset(linkId.index(), time, time_interval);
+        while (traversal.next()) {
+            tileHourAccumulator.add(traversal.tileX(), traversal.tileY(), traversal.start(), traversal.end());
+        }
+        if (keepPersonSegments) {
+            segmentStore.appendLink(event.getPersonId().index(), linkId.index(), time, time_interval);
         }
     }
 
+    // Writes the outputs of the export in one pass, see TrackerExport. The open last activities are added first,
+    // so every output of this and any later export sees each of them once. Fails with an UncheckedIOException if an
+    // output could not be written.
+    public void export(TrackerExport export) {
+        if (export.needsSegments() && !keepPersonSegments) {
+            throw new IllegalStateException("Per-person segments are not kept, enable keepPersonSegments for the CSV "
+                    + "export and segment sinks");
+        }
+        TrackerMetrics.PhaseEvent phase = TrackerMetrics.beginPhase(export.phase());
+        List<Id<Person>> persons = personsByIndex(lastActivityStartEventMap.keySet());
+        addOpenActivities();
+        // the accumulator and the store are only read from here on
+        List<ExportPipeline.Task> tasks = new ArrayList<>();
+        if (export.jsonPath() != null) {
+            tasks.add(() -> writeJson(export.jsonPath()));
+        }
+        if (export.rasterPath() != null) {
+            tasks.add(() -> writeRaster(export.rasterPath()));
+        }
+        List<SegmentSink> sinks = new ArrayList<>();
+        try {
+            if (export.csvPath() != null) {
+                sinks.addAll(PersonTileCsvWriter.writers(export.csvPath(), config.getCsvPartitions()));
+            }
+            sinks.addAll(export.sinks());
+            new ExportPipeline(segmentStore, tileIndex).run(tasks, persons, sinks);
+        } catch (IOException e) {
+            // callers such as batch runs have to know that an output is missing
+            throw new UncheckedIOException("Export failed", e);
+        } finally {
+            metrics.record(phase);
+        }
+    }
+
+    // In incremental mode only the bins that were not written during the run yet end up in this file.
     public void savePersonsTimeListToJson(String filePath) {
+        export(new TrackerExport().json(filePath));
+    }
+
+    private void writeJson(String filePath) throws IOException {
+        if (tileHourAccumulator.lateSegments() > 0) {
+            System.out.println("Warning: " + tileHourAccumulator.lateSegments() + " segments with "
+                    + tileHourAccumulator.lateSeconds() + " seconds reached into bins that were already written, "
+                    + "raise maxOpenSegment to include them");
+        }
+        System.out.println("tiles: " + tileHourAccumulator.tileCount());
+        writeBins(filePath, tileHourAccumulator.freedBins(), tileHourAccumulator.binCount());
+    }
+
+    // Population per tile and bin as a memory-mapped float raster over the network, see TileRasterWriter for the
+    // layout. Like the JSON it holds the bins not yet written in incremental mode.
+    public void savePopulationRaster(String filePath) {
+        export(new TrackerExport().raster(filePath));
+    }
+
+    private void writeRaster(String filePath) throws IOException {
+        int outside = new TileRasterWriter(network.boundingBox(), tileSize).write(tileHourAccumulator, filePath);
+        if (outside > 0) {
+            System.out.println("Warning: " + outside + " tiles outside the network are not in the raster");
+        }
+    }
+
+    // agent_tracker_tiles.json.gz -> agent_tracker_tiles_500m.json.gz
+    static String levelPath(String filePath, int tileSize) {
+        return insertBeforeExtension(filePath, "_" + tileSize + "m");
+    }
+
+    private static String insertBeforeExtension(String filePath, String insert) {
+        String suffix = "";
+        for (String extension : new String[] { ".json.gz", ".json", ".gz" }) {
+            if (filePath.endsWith(extension)) {
+                suffix = extension;
+                break;
+            }
+        }
+        return filePath.substring(0, filePath.length() - suffix.length()) + insert + suffix;
+    }
+
+    public void savePersonToTileMapCsv(String filePath) {
+        if (!keepPersonSegments) {
+            throw new IllegalStateException("Per-person segments are not kept, enable keepPersonSegments for the CSV export");
+        }
+        export(new TrackerExport().csv(filePath));
+    }
+
+    // Index for queries by tile, time and person over the per-person segments, including the open last activities,
+    // which are only in the store once an export added them.
+    public SegmentQueryIndex buildQueryIndex() {
+        if (!keepPersonSegments) {
+            throw new IllegalStateException("Per-person segments are not kept, enable keepPersonSegments for the query index");
+        }
+        TrackerMetrics.PhaseEvent phase = TrackerMetrics.beginPhase("queryIndex");
+        List<Id<Person>> persons = openActivitiesStored ? new ArrayList<>()
+                : personsByIndex(lastActivityStartEventMap.keySet());
+        int[][] openActivities = new int[5][persons.size()];
+        for (int i = 0; i < persons.size(); i++) {
+            ActivityStartEvent activityStartEvent = lastActivityStartEventMap.get(persons.get(i));
+            Coord coord = getLinkCoords(activityStartEvent.getLinkId()).mid;
+            int time = (int) activityStartEvent.getTime();
+            openActivities[0][i] = persons.get(i).index();
+            openActivities[1][i] = snap(coord.getX());
+            openActivities[2][i] = snap(coord.getY());
+            openActivities[3][i] = time;
+            openActivities[4][i] = time + FINAL_ACTIVITY_DURATION;
+        }
+        SegmentQueryIndex index = new SegmentQueryIndex(segmentStore, tileIndex, openActivities,
+                Runtime.getRuntime().availableProcessors());
+        metrics.record(phase);
+        return index;
+    }
+
+    // Persons in Id index order, i.e. in the order they first appeared, independent of any map layout.
+    private static List<Id<Person>> personsByIndex(Collection<Id<Person>> personIds) {
+        List<Id<Person>> sorted = new ArrayList<>(personIds);
+        sorted.sort(Comparator.comparingInt(Id::index));
+        return sorted;
+    }
+
+    // Adds the results of a parallel shard. Shards own disjoint sets of persons, so their states never overlap.
+    public void mergeFrom(AgentTrackerEventHandler shard) {
+        tileHourAccumulator.mergeFrom(shard.tileHourAccumulator);
+        if (keepPersonSegments) {
+            segmentStore.adopt(shard.segmentStore);
+        }
+        lastActivityStartEventMap.putAll(shard.lastActivityStartEventMap);
+        linkCacheHits += shard.linkCacheHits;
+        linkCacheMisses += shard.linkCacheMisses;
+    }
+
+    // Checkpoint of everything the handler keeps between events, written between two events; see
+    // CheckpointedEventsReader for the file around it. Id indices differ from JVM to JVM, so persons and vehicles
+    // are written once by id and referenced by their position in that table, links by their network record.
+    // Persons keep their relative Id order, so the CSV of a resumed run lists them in the same order.
+    // The store only grows, so its records go to the segment log next to the checkpoint instead: every checkpoint
+    // appends the records since the previous one and notes how much of the log it covers.
+    public void writeCheckpoint(DataOutputStream out, File segmentLog) throws IOException {
+        int personCapacity = Math.max(admissionFilter.capacity(), agentStates.capacity());
+        int[] personRefs = new int[personCapacity];
+        int persons = 0;
+        for (int index = 0; index < personCapacity; index++) {
+            boolean known = index < agentStates.capacity() && agentStates.stateAt(index) != AgentStates.UNKNOWN;
+            personRefs[index] = known || admissionFilter.isDecided(index) ? persons++ : -1;
+        }
+        out.writeInt(persons);
+        for (int index = 0; index < personCapacity; index++) {
+            if (personRefs[index] != -1) {
+                out.writeUTF(Id.get(index, Person.class).toString());
+            }
+        }
+
+        int vehicleCapacity = Math.max(vehicleOccupancy.capacity(), Id.getNumberOfIds(Vehicle.class));
+        int[] vehicleRefs = new int[vehicleCapacity];
+        Arrays.fill(vehicleRefs, -1);
+        int vehicles = 0;
+        for (int vehicle = 0; vehicle < vehicleOccupancy.capacity(); vehicle++) {
+            if (vehicleOccupancy.countAt(vehicle) > 0) {
+                vehicleRefs[vehicle] = vehicles++;
+            }
+        }
+        for (int index = 0; index < agentStates.capacity(); index++) {
+            int vehicle = agentStates.vehicleAt(index);
+            if (vehicle != -1 && vehicleRefs[vehicle] == -1) {
+                vehicleRefs[vehicle] = vehicles++;
+            }
+        }
+        Id<Vehicle>[] vehicleIds = new Id[vehicles];
+        for (int vehicle = 0; vehicle < vehicleCapacity; vehicle++) {
+            if (vehicleRefs[vehicle] != -1) {
+                vehicleIds[vehicleRefs[vehicle]] = Id.get(vehicle, Vehicle.class);
+            }
+        }
+        out.writeInt(vehicles);
+        for (Id<Vehicle> vehicleId : vehicleIds) {
+            out.writeUTF(vehicleId.toString());
+        }
+
+        // per person: admission, state, vehicle, credited activity time
+        for (int index = 0; index < personCapacity; index++) {
+            if (personRefs[index] == -1) {
+                continue;
+            }
+            out.writeByte(!admissionFilter.isDecided(index) ? 0 : admissionFilter.isAdmitted(index) ? 2 : 1);
+            boolean hasState = index < agentStates.capacity();
+            out.writeByte(hasState ? agentStates.stateAt(index) : AgentStates.UNKNOWN);
+            out.writeDouble(hasState ? agentStates.timeAt(index) : 0);
+            out.writeInt(hasState ? linkRecord(agentStates.linkAt(index)) : -1);
+            int vehicle = hasState ? agentStates.vehicleAt(index) : -1;
+            out.writeInt(vehicle == -1 ? -1 : vehicleRefs[vehicle]);
+            out.writeInt(index < activityCreditedUntil.length ? activityCreditedUntil[index] : 0);
+        }
+
+        // occupants in slot order
+        for (int vehicle = 0; vehicle < vehicleOccupancy.capacity(); vehicle++) {
+            int count = vehicleOccupancy.countAt(vehicle);
+            if (count > 0) {
+                out.writeInt(vehicleRefs[vehicle]);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(personRefs[vehicleOccupancy.occupantAt(vehicle, i).index()]);
+                }
+            }
+        }
+        out.writeInt(-1);
+
+        out.writeInt(lastActivityStartEventMap.size());
         for (Map.Entry<Id<Person>, ActivityStartEvent> entry : lastActivityStartEventMap.entrySet()) {
-            Id<Person> personId = entry.getKey();
             ActivityStartEvent activityStartEvent = entry.getValue();
-            Id<Link> linkId = activityStartEvent.getLinkId();
-            Coord coord = getLinkCoords(linkId).mid;
-            double time = activityStartEvent.getTime();
-            List<Tuple<String, Tuple<Integer, Integer>>> tileTimeLilst = getOrCreateTileTimeList(personId);
-            tileTimeLilst.add(
-                    new Tuple(String.format("%s,%s", (int) coord.getX() / 100 * 100, (int) coord.getY() / 100 * 100),
-                            new Tuple((int) time, (int) (time + 10 * 3600))));
+            out.writeInt(personRefs[entry.getKey().index()]);
+            out.writeDouble(activityStartEvent.getTime());
+            out.writeInt(network.record(activityStartEvent.getLinkId()));
+            out.writeUTF(activityStartEvent.getActType());
         }
-        try {
-            Map<String, Map<String, Map<String, Double>>> transformedMap = new HashMap<>();
-            
-            System.out.println("personToTileTimeMap size: " + personToTileTimeMap.size());
-            int count = 0;
-            for (Map.Entry<Id<Person>, List<Tuple<String, Tuple<Integer, Integer>>>> entry : personToTileTimeMap
-                    .entrySet()) {
-                if (++count % 1000 == 0) {
-                    System.out.println("count: " + count);
+
+        tileHourAccumulator.write(out);
+
+        out.writeBoolean(keepPersonSegments);
+        if (keepPersonSegments) {
+            appendSegmentLog(segmentLog);
+            out.writeLong(segmentLogLength);
+            out.writeLong(loggedRecords);
+        }
+    }
+
+    // Appends the store records since the last checkpoint in store order, which keeps every person's chain order.
+    // Entries: a ref of -1 and the id of the next new person, or a ref, 1 and a link record with its network record,
+    // or a ref, 0 and a tile record. Anything a failed append left behind the valid part is cut off first.
+    private void appendSegmentLog(File segmentLog) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentLog, "rw")) {
+            file.setLength(segmentLogLength);
+        }
+        long end = segmentStore.nextRecord();
+        List<Integer> newPersons = new ArrayList<>();
+        try (DataOutputStream log = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(segmentLog, true), 1 << 16))) {
+            for (long record = loggedRecords; record < end; record++) {
+                int person = segmentStore.person(record);
+                if (person >= segmentLogRefs.length) {
+                    segmentLogRefs = Arrays.copyOf(segmentLogRefs, Math.max(person + 1, segmentLogRefs.length * 2));
+                }
+                if (segmentLogRefs[person] == 0) {
+                    segmentLogRefs[person] = segmentLogPersons + newPersons.size() + 1;
+                    newPersons.add(person);
+                    log.writeInt(-1);
+                    log.writeUTF(Id.get(person, Person.class).toString());
                 }
-                for (Tuple<String, Tuple<Integer, Integer>> tuple : entry.getValue()) {
-                    String tile = tuple.getFirst();
-                    Tuple<Integer, Integer> time = tuple.getSecond();
-                    int startHour = time.getFirst() / 3600;
-                    int endHour = time.getSecond() / 3600;
-
-                    for (int hour = startHour; hour <= endHour; hour++) {
-                        int startSecond = Math.max(time.getFirst(), hour * 3600);
-                        int endSecond = Math.min(time.getSecond(), (hour + 1) * 3600);
-                        double population = (endSecond - startSecond) / 3600.0;
-
-                        Map<String, Map<String, Double>> tileMap = transformedMap.getOrDefault(tile, new HashMap<>());
-                        Map<String, Double> hourMap = tileMap.getOrDefault(String.valueOf(hour), new HashMap<>());
-                        hourMap.put("population", hourMap.getOrDefault("population", 0.0) + population);
-                        tileMap.put(String.valueOf(hour), hourMap);
-                        transformedMap.put(tile, tileMap);
-                    }
+                log.writeInt(segmentLogRefs[person] - 1);
+                if (segmentStore.isLink(record)) {
+                    log.writeByte(1);
+                    log.writeInt(linkRecord(segmentStore.tileX(record)));
+                    log.writeInt(segmentStore.tileY(record));
+                    log.writeDouble(segmentStore.linkTime(record));
+                } else {
+                    log.writeByte(0);
+                    log.writeInt(segmentStore.tileX(record));
+                    log.writeInt(segmentStore.tileY(record));
+                    log.writeInt(segmentStore.start(record));
+                    log.writeInt(segmentStore.end(record));
                 }
             }
-
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(filePath), transformedMap);
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (IOException | RuntimeException e) {
+            // the persons of this append are not in the valid part of the log
+            for (int person : newPersons) {
+                segmentLogRefs[person] = 0;
+            }
+            throw e;
         }
+        segmentLogPersons += newPersons.size();
+        loggedRecords = end;
+        segmentLogLength = segmentLog.length();
     }
 
-    public void savePersonToTileMapCsv(String filePath) {
-        try {
-            BufferedWriter writer = Files.newBufferedWriter(Paths.get(filePath));
-            CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader("PersonId", "X", "Y", "StartTime", "EndTime"));
+    private int linkRecord(int linkSlot) {
+        return linkSlot == -1 ? -1 : network.record(Id.get(linkSlot, Link.class));
+    }
 
-            for (Map.Entry<Id<Person>, ActivityStartEvent> entry : lastActivityStartEventMap.entrySet()) {
-                Id<Person> personId = entry.getKey();
-                ActivityStartEvent activityStartEvent = entry.getValue();
-                Id<Link> linkId = activityStartEvent.getLinkId();
-                Coord coord = getLinkCoords(linkId).mid;
-                double time = activityStartEvent.getTime();
-                List<Tuple<String, Tuple<Integer, Integer>>> tileTimeList = getOrCreateTileTimeList(personId);
-                tileTimeList.add(
-                        new Tuple(String.format("%s,%s", (int) coord.getX() / 100 * 100, (int) coord.getY() / 100 * 100),
-                                new Tuple((int) time, (int) (time + 10 * 3600))));
-
-                for (Tuple<String, Tuple<Integer, Integer>> tuple : tileTimeList) {
-                    csvPrinter.printRecord(personId, tuple.getFirst().split(",")[0], tuple.getFirst().split(",")[1], tuple.getSecond().getFirst(), tuple.getSecond().getSecond());
+    private Id<Link> linkOfRecord(int record) {
+        return record == -1 ? null : network.linkId(record);
+    }
+
+    // Restores a checkpoint into a handler that has not seen any events yet.
+    public void readCheckpoint(DataInputStream in, File segmentLog) throws IOException {
+        if (agentStates.capacity() != 0 || tileHourAccumulator.tileCount() != 0) {
+            throw new IllegalStateException("Checkpoints can only be read into a new handler");
+        }
+        Id<Person>[] persons = new Id[in.readInt()];
+        for (int ref = 0; ref < persons.length; ref++) {
+            persons[ref] = Id.createPersonId(in.readUTF());
+        }
+        Id<Vehicle>[] vehicles = new Id[in.readInt()];
+        for (int ref = 0; ref < vehicles.length; ref++) {
+            vehicles[ref] = Id.createVehicleId(in.readUTF());
+        }
+
+        for (Id<Person> personId : persons) {
+            byte decision = in.readByte();
+            if (decision != 0) {
+                admissionFilter.restore(personId, decision == 2);
+            }
+            byte state = in.readByte();
+            double time = in.readDouble();
+            Id<Link> linkId = linkOfRecord(in.readInt());
+            if (state != AgentStates.UNKNOWN) {
+                agentStates.set(personId, state, linkId, time);
+            }
+            int vehicle = in.readInt();
+            if (vehicle != -1) {
+                agentStates.enterVehicle(personId, vehicles[vehicle]);
+            }
+            int creditedUntil = in.readInt();
+            if (creditedUntil != 0) {
+                int index = personId.index();
+                if (index >= activityCreditedUntil.length) {
+                    activityCreditedUntil = Arrays.copyOf(activityCreditedUntil,
+                            Math.max(index + 1, activityCreditedUntil.length * 2));
                 }
+                activityCreditedUntil[index] = creditedUntil;
             }
+        }
 
-            csvPrinter.flush();
-            csvPrinter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (int vehicle = in.readInt(); vehicle != -1; vehicle = in.readInt()) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                vehicleOccupancy.add(vehicles[vehicle], persons[in.readInt()]);
+            }
+        }
+
+        int activityStarts = in.readInt();
+        for (int i = 0; i < activityStarts; i++) {
+            Id<Person> personId = persons[in.readInt()];
+            double time = in.readDouble();
+            Id<Link> linkId = linkOfRecord(in.readInt());
+            String actType = in.readUTF();
+            lastActivityStartEventMap.put(personId, new ActivityStartEvent(time, personId, linkId, null, actType, null));
+        }
+
+        tileHourAccumulator.read(in);
+
+        if (in.readBoolean() != keepPersonSegments) {
+            throw new IOException("Checkpoint and configuration differ in keepPersonSegments");
+        }
+        if (keepPersonSegments) {
+            long length = in.readLong();
+            long records = in.readLong();
+            readSegmentLog(segmentLog, length, records);
+        }
+    }
+
+    // Appends the first records of the segment log to the store and cuts off what a later checkpoint that was not
+    // completed appended behind them.
+    private void readSegmentLog(File segmentLog, long length, long records) throws IOException {
+        if (segmentLog.length() < length) {
+            throw new IOException("Segment log " + segmentLog + " is shorter than its checkpoint");
+        }
+        List<Id<Person>> persons = new ArrayList<>();
+        try (DataInputStream log = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segmentLog), 1 << 16))) {
+            for (long record = 0; record < records; ) {
+                int ref = log.readInt();
+                if (ref == -1) {
+                    persons.add(Id.createPersonId(log.readUTF()));
+                    continue;
+                }
+                int person = persons.get(ref).index();
+                if (log.readByte() == 1) {
+                    int linkSlot = network.linkId(log.readInt()).index();
+                    int interval = log.readInt();
+                    segmentStore.appendLink(person, linkSlot, log.readDouble(), interval);
+                } else {
+                    segmentStore.append(person, log.readInt(), log.readInt(), log.readInt(), log.readInt());
+                }
+                record++;
+            }
+        }
+        for (int ref = 0; ref < persons.size(); ref++) {
+            int person = persons.get(ref).index();
+            if (person >= segmentLogRefs.length) {
+                segmentLogRefs = Arrays.copyOf(segmentLogRefs, Math.max(person + 1, segmentLogRefs.length * 2));
+            }
+            segmentLogRefs[person] = ref + 1;
+        }
+        segmentLogPersons = persons.size();
+        loggedRecords = segmentStore.nextRecord();
+        segmentLogLength = length;
+        try (RandomAccessFile file = new RandomAccessFile(segmentLog, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    // Writes the run report, if configured, and releases the off-heap segments once all exports are written.
+    public void close() {
+        if (config.getRunReport() != null) {
+            metrics.collect(this);
+            try {
+                metrics.writeReport(config.getRunReport());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (segmentStore != null) {
+            segmentStore.close();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package org.matsim.project;
+
+import org.matsim.core.controler.AbstractModule;
+
+// Attaches a LiveAgentTracker to a MATSim controler:
+//   AgentTrackerModule module = new AgentTrackerModule(new String[] { "back.*" }, true);
+//   controler.addOverridingModule(module);
+// Other modules can inject the LiveTileOccupancy to poll it while the simulation runs.
+public class AgentTrackerModule extends AbstractModule {
+
+    private final LiveAgentTracker tracker;
+
+    public AgentTrackerModule(String[] ignoreRegex, boolean ignorePtAgents) {
+        this.tracker = new LiveAgentTracker(ignoreRegex, ignorePtAgents);
+    }
+
+    public LiveAgentTracker getTracker() {
+        return tracker;
+    }
+
+    @Override
+    public void install() {
+        bind(LiveAgentTracker.class).toInstance(tracker);
+        bind(LiveTileOccupancy.class).toInstance(tracker.getOccupancy());
+        addControlerListenerBinding().toInstance(tracker);
+    }
+}
@@ -0,0 +1,210 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsReaderXMLv1;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+
+// Reads an events file (plain or .gz) and writes a checkpoint of the handler every checkpointInterval seconds of
+// event time: the handler state plus the offset of the next event in the uncompressed file. A run on the same
+// events file with the same checkpoint path continues from the checkpoint instead of the start: it skips to the
+// offset without parsing, puts an <events> header in front of the rest and restores the handler. The result is the
+// same as that of an uninterrupted run. The records of the segment store go to a log next to the checkpoint, which
+// every checkpoint only extends by the records since the previous one. Both are deleted once the file is read
+// completely.
+class CheckpointedEventsReader implements BasicEventHandler {
+
+    private static final int MAGIC = 0x41544331; // "ATC1"
+    private static final int VERSION = 3;
+    private static final byte[] HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final AgentTrackerEventHandler handler;
+    // the handler as the events manager would see it, e.g. wrapped for metrics
+    private final TrackerEventHandler target;
+    private final NetworkSnapshot network;
+    private final AgentTrackerConfig config;
+    private final TrackerMetrics metrics;
+    private final File events;
+    private final File checkpoint;
+    private final File segmentLog;
+    private final int interval;
+
+    private EventOffsetInputStream offsets;
+    private double nextCheckpoint;
+    // the event the checkpoint was taken at, which has to be the first one after resuming
+    private double resumeTime = Double.NaN;
+    private String resumeType = null;
+
+    public CheckpointedEventsReader(AgentTrackerEventHandler handler, TrackerEventHandler target,
+            NetworkSnapshot network, AgentTrackerConfig config, TrackerMetrics metrics, String eventsPath) {
+        this.handler = handler;
+        this.target = target;
+        this.network = network;
+        this.config = config;
+        this.metrics = metrics;
+        this.events = new File(eventsPath);
+        this.checkpoint = new File(config.getCheckpointPath() != null ? config.getCheckpointPath()
+                : eventsPath + ".checkpoint");
+        this.segmentLog = new File(checkpoint.getPath() + ".segments");
+        this.interval = config.getCheckpointInterval();
+        this.nextCheckpoint = interval;
+    }
+
+    public void read() throws IOException {
+        long offset = 0;
+        if (checkpoint.isFile()) {
+            offset = restore();
+        }
+        if (offset == 0) {
+            // left by a run of another file or configuration
+            segmentLog.delete();
+        }
+
+        InputStream in = new FileInputStream(events);
+        try {
+            if (events.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+                skipFully(in, offset);
+            } else {
+                ((FileInputStream) in).getChannel().position(offset);
+            }
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+            if (offset > 0) {
+                in = new SequenceInputStream(new ByteArrayInputStream(HEADER), in);
+            }
+            offsets = new EventOffsetInputStream(in, offset - (offset > 0 ? HEADER.length : 0));
+
+            EventsManager eventsManager = EventsUtils.createEventsManager();
+            eventsManager.addHandler(this);
+            new EventsReaderXMLv1(eventsManager).parse(offsets);
+        } finally {
+            in.close();
+        }
+        checkpoint.delete();
+        segmentLog.delete();
+    }
+
+    // The offset to continue from, or 0 if the checkpoint is for another events file or configuration.
+    private long restore() throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(checkpoint), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Ignoring checkpoint " + checkpoint + " of another version");
+                return 0;
+            }
+            long length = in.readLong();
+            long mtime = in.readLong();
+            int linkCount = in.readInt();
+            int tileSize = in.readInt();
+            int binWidth = in.readInt();
+            boolean keepPersonSegments = in.readBoolean();
+            double sampleRate = in.readDouble();
+            if (length != events.length() || mtime != events.lastModified() || linkCount != network.linkCount()
+                    || tileSize != config.getTileSize() || binWidth != config.getBinWidth()
+                    || keepPersonSegments != config.isKeepPersonSegments() || sampleRate != config.getSampleRate()) {
+                System.out.println("Ignoring checkpoint " + checkpoint + " of another events file or configuration");
+                return 0;
+            }
+            long offset = in.readLong();
+            resumeTime = in.readDouble();
+            resumeType = in.readUTF();
+
+            // from here on the handler is modified, so a broken checkpoint cannot fall back to the start
+            TrackerMetrics.PhaseEvent phase = TrackerMetrics.beginPhase("checkpointRestore");
+            handler.readCheckpoint(in, segmentLog);
+            metrics.record(phase);
+            nextCheckpoint = (Math.floor(resumeTime / interval) + 1) * interval;
+            System.out.println("Resuming from checkpoint " + checkpoint + " at time " + resumeTime);
+            return offset;
+        } catch (EOFException e) {
+            throw new IOException("Checkpoint " + checkpoint + " is truncated", e);
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Events file ends before the checkpoint offset");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        long offset = offsets.nextEventOffset();
+        if (resumeType != null) {
+            if (event.getTime() != resumeTime || !event.getEventType().equals(resumeType)) {
+                throw new IllegalStateException("Events file does not continue at the checkpoint, expected "
+                        + resumeType + " at " + resumeTime + " but got " + event.getEventType() + " at "
+                        + event.getTime());
+            }
+            resumeType = null;
+        }
+        // taken before the event, so the checkpoint covers exactly the events before offset
+        if (event.getTime() >= nextCheckpoint) {
+            write(offset, event);
+            nextCheckpoint = (Math.floor(event.getTime() / interval) + 1) * interval;
+        }
+        ShardedEventHandler.dispatch(target, event);
+    }
+
+    // Written next to the checkpoint and moved over it, so a crash while writing keeps the previous one.
+    private void write(long offset, Event event) {
+        TrackerMetrics.PhaseEvent phase = TrackerMetrics.beginPhase("checkpoint");
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(events.length());
+                out.writeLong(events.lastModified());
+                out.writeInt(network.linkCount());
+                out.writeInt(config.getTileSize());
+                out.writeInt(config.getBinWidth());
+                out.writeBoolean(config.isKeepPersonSegments());
+                out.writeDouble(config.getSampleRate());
+                out.writeLong(offset);
+                out.writeDouble(event.getTime());
+                out.writeUTF(event.getEventType());
+                handler.writeCheckpoint(out, segmentLog);
+            }
+            Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Checkpoint at time " + event.getTime() + " written to " + checkpoint);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.record(phase);
+    }
+
+    @Override
+    public void reset(int iteration) {
+        target.reset(iteration);
+    }
+}
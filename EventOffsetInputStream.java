@@ -0,0 +1,103 @@
+package org.matsim.project;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Passes an events XML stream through to the parser and notes the offset of every line that starts an <event>,
+// relative to the start of the uncompressed events file. The parser reads ahead, so the offsets are queued until
+// the events they belong to come out of it: nextEventOffset() is the start of the next event handed out.
+// MATSim writes one event per line, which this relies on.
+class EventOffsetInputStream extends FilterInputStream {
+
+    private static final byte[] EVENT = { '<', 'e', 'v', 'e', 'n', 't', ' ' };
+
+    private long position;
+    private long lineStart;
+    // characters of EVENT matched on the current line, -1 once the line cannot be an event line
+    private int matched = 0;
+
+    private long[] offsets = new long[1024];
+    private int head = 0;
+    private int size = 0;
+
+    // position is the offset of the first byte of in, e.g. negative if in starts with a header that is not in the file
+    public EventOffsetInputStream(InputStream in, long position) {
+        super(in);
+        this.position = position;
+        this.lineStart = position;
+    }
+
+    public long nextEventOffset() {
+        if (size == 0) {
+            throw new IllegalStateException("Event at unknown offset, checkpoints need one event per line");
+        }
+        long offset = offsets[head];
+        head = (head + 1) % offsets.length;
+        size--;
+        return offset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            scan((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        for (int i = 0; i < read; i++) {
+            scan(b[off + i]);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // the parser never skips, and skipped bytes would have to be scanned as well
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        int read = read(buffer, 0, buffer.length);
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void scan(byte c) {
+        long at = position++;
+        if (c == '\n') {
+            lineStart = at + 1;
+            matched = 0;
+        } else if (matched < 0) {
+            return;
+        } else if (matched == 0 && (c == ' ' || c == '\t' || c == '\r')) {
+            return;
+        } else if (c == EVENT[matched]) {
+            if (++matched == EVENT.length) {
+                push(lineStart);
+                matched = -1;
+            }
+        } else {
+            matched = -1;
+        }
+    }
+
+    private void push(long offset) {
+        if (size == offsets.length) {
+            long[] grown = new long[offsets.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = offsets[(head + i) % offsets.length];
+            }
+            offsets = grown;
+            head = 0;
+        }
+        offsets[(head + size) % offsets.length] = offset;
+        size++;
+    }
+}
@@ -0,0 +1,148 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Runs the outputs of an export at the same time. Every task gets a thread; the segments of the given persons are
+// read from the store once, on the calling thread, and handed to every sink in batches through a bounded queue of
+// its own, so a slow sink holds the traversal back instead of filling the heap. The store is only read.
+class ExportPipeline {
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUED_BATCHES = 16;
+    private static final SegmentSink.Batch END = new SegmentSink.Batch(0);
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private final SegmentStore segmentStore;
+    // expands the link records of the store
+    private final LinkTileIndex tileIndex;
+    private volatile Throwable failure;
+
+    public ExportPipeline(SegmentStore segmentStore, LinkTileIndex tileIndex) {
+        this.segmentStore = segmentStore;
+        this.tileIndex = tileIndex;
+    }
+
+    public void run(List<Task> tasks, List<Id<Person>> persons, List<SegmentSink> sinks) throws IOException {
+        List<Thread> threads = new ArrayList<>();
+        for (Task task : tasks) {
+            threads.add(start("agent-tracker-export-" + threads.size(), task));
+        }
+        List<BlockingQueue<SegmentSink.Batch>> queues = new ArrayList<>();
+        for (SegmentSink sink : sinks) {
+            BlockingQueue<SegmentSink.Batch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+            queues.add(queue);
+            threads.add(start("agent-tracker-sink-" + queues.size(), () -> consume(sink, queue)));
+        }
+        try {
+            if (!sinks.isEmpty()) {
+                traverse(persons, queues);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("Export failed", failure);
+        }
+    }
+
+    private Thread start(String name, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    // Every queue gets END, also when a sink failed, so every sink thread ends.
+    private void traverse(List<Id<Person>> persons, List<BlockingQueue<SegmentSink.Batch>> queues)
+            throws InterruptedException {
+        SegmentStore.Cursor cursor = segmentStore.cursor(tileIndex);
+        SegmentSink.Batch batch = new SegmentSink.Batch(BATCH_SIZE);
+        try {
+            for (Id<Person> personId : persons) {
+                if (failure != null) {
+                    return;
+                }
+                int person = personId.index();
+                cursor.reset(person);
+                while (cursor.next()) {
+                    int i = batch.size++;
+                    batch.person[i] = person;
+                    batch.tileX[i] = cursor.tileX();
+                    batch.tileY[i] = cursor.tileY();
+                    batch.start[i] = cursor.start();
+                    batch.end[i] = cursor.end();
+                    if (batch.size == BATCH_SIZE) {
+                        for (BlockingQueue<SegmentSink.Batch> queue : queues) {
+                            queue.put(batch);
+                        }
+                        batch = new SegmentSink.Batch(BATCH_SIZE);
+                    }
+                }
+            }
+            if (batch.size > 0) {
+                for (BlockingQueue<SegmentSink.Batch> queue : queues) {
+                    queue.put(batch);
+                }
+            }
+        } finally {
+            for (BlockingQueue<SegmentSink.Batch> queue : queues) {
+                queue.put(END);
+            }
+        }
+    }
+
+    // A failed sink keeps draining its queue so the traversal does not block on it.
+    private void consume(SegmentSink sink, BlockingQueue<SegmentSink.Batch> queue) throws IOException {
+        boolean failed = false;
+        try {
+            while (true) {
+                SegmentSink.Batch batch = queue.take();
+                if (batch == END) {
+                    break;
+                }
+                if (!failed) {
+                    try {
+                        sink.accept(batch);
+                    } catch (IOException | RuntimeException e) {
+                        fail(e);
+                        failed = true;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } finally {
+            sink.finish();
+        }
+    }
+}
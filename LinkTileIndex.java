@@ -0,0 +1,208 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.project.utils.GridTraversal;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Link -> tile decomposition for a whole network, computed once and stored as flat primitive arrays.
+// The tiles of a link are tileX/tileY/ratio[first[slot] .. end[slot]) with slot = linkId.index(),
+// in the order the link passes through them. The links' ranges follow the record order of the network snapshot,
+// so the arrays can be stored in and loaded from the snapshot file as they are.
+class LinkTileIndex {
+
+    private final int tileSize;
+    private final int[] first;
+    private final int[] end;
+    private final int[] tileX;
+    private final int[] tileY;
+    private final double[] ratio;
+
+    private LinkTileIndex(int tileSize, int[] first, int[] end, int[] tileX, int[] tileY, double[] ratio) {
+        this.tileSize = tileSize;
+        this.first = first;
+        this.end = end;
+        this.tileX = tileX;
+        this.tileY = tileY;
+        this.ratio = ratio;
+    }
+
+    public static LinkTileIndex build(Network network, int tileSize) {
+        return build(NetworkSnapshot.of(network), tileSize);
+    }
+
+    public static LinkTileIndex build(NetworkSnapshot network, int tileSize) {
+        ThreadLocal<GridTraversal> traversals = ThreadLocal.withInitial(() -> new GridTraversal(tileSize));
+
+        // the geometry of every link is independent, so walk them on all cores: once to size the arrays,
+        // once to fill every link's range in place
+        int[] counts = new int[network.linkCount()];
+        IntStream.range(0, counts.length).parallel().forEach(record -> {
+            counts[record] = traversals.get().count(network.fromX(record), network.fromY(record),
+                    network.toX(record), network.toY(record));
+        });
+        int total = Arrays.stream(counts).sum();
+        int[] tileX = new int[total];
+        int[] tileY = new int[total];
+        double[] ratio = new double[total];
+        LinkTileIndex index = fromCounts(network, tileSize, counts, tileX, tileY, ratio);
+
+        IntStream.range(0, counts.length).parallel().forEach(record -> {
+            GridTraversal traversal = traversals.get();
+            traversal.reset(network.fromX(record), network.fromY(record), network.toX(record), network.toY(record));
+            int pos = index.first[network.linkId(record).index()];
+            while (traversal.next()) {
+                tileX[pos] = traversal.tileX();
+                tileY[pos] = traversal.tileY();
+                ratio[pos] = traversal.fraction();
+                pos++;
+            }
+        });
+        return index;
+    }
+
+    // Lays the links' ranges out one after the other in record order.
+    private static LinkTileIndex fromCounts(NetworkSnapshot network, int tileSize, int[] counts, int[] tileX,
+            int[] tileY, double[] ratio) {
+        int slots = Id.getNumberOfIds(Link.class);
+        int[] first = new int[slots];
+        int[] end = new int[slots];
+        int pos = 0;
+        for (int record = 0; record < counts.length; record++) {
+            int slot = network.linkId(record).index();
+            first[slot] = pos;
+            pos += counts[record];
+            end[slot] = pos;
+        }
+        return new LinkTileIndex(tileSize, first, end, tileX, tileY, ratio);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int firstTile(Id<Link> linkId) {
+        checkLink(linkId);
+        return first[linkId.index()];
+    }
+
+    // Fails for links that are not in the network the index was built from, e.g. events of another network.
+    public void checkLink(Id<Link> linkId) {
+        int slot = linkId.index();
+        if (slot >= first.length || first[slot] == end[slot]) {
+            throw new IllegalArgumentException("Link " + linkId + " is not part of the link tile index");
+        }
+    }
+
+    public int endTile(Id<Link> linkId) {
+        return end[linkId.index()];
+    }
+
+    public int tileX(int i) {
+        return tileX[i];
+    }
+
+    public int tileY(int i) {
+        return tileY[i];
+    }
+
+    public double ratio(int i) {
+        return ratio[i];
+    }
+
+    public int size() {
+        return ratio.length;
+    }
+
+    public Traversal traversal() {
+        return new Traversal();
+    }
+
+    // Cursor over the pieces one traversal of a link leaves in its tiles: the interval is split by the tiles' share
+    // of the link length, and the pieces follow each other from the given time on, truncated to whole seconds.
+    // The handler and the export both walk traversals through this, so they always produce the same segments.
+    class Traversal {
+        private int current;
+        private int pos;
+        private int endPos;
+        private double time;
+        private int interval;
+        private double passed;
+        private int start;
+        private int duration;
+
+        public void reset(int slot, double time, int interval) {
+            this.pos = first[slot];
+            this.endPos = end[slot];
+            this.time = time;
+            this.interval = interval;
+            this.passed = 0;
+        }
+
+        public boolean next() {
+            if (pos >= endPos) {
+                return false;
+            }
+            current = pos++;
+            duration = (int) (ratio[current] * interval);
+            start = (int) (time + passed);
+            passed += ratio[current] * interval;
+            return true;
+        }
+
+        public int tileX() {
+            return tileX[current];
+        }
+
+        public int tileY() {
+            return tileY[current];
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return start + duration;
+        }
+    }
+
+    // Snapshot section: the tile count of every link in record order, then the tileX, tileY and ratio arrays.
+    void write(DataOutputStream out, NetworkSnapshot network) throws IOException {
+        for (int record = 0; record < network.linkCount(); record++) {
+            int slot = network.linkId(record).index();
+            out.writeInt(end[slot] - first[slot]);
+        }
+        for (int x : tileX) {
+            out.writeInt(x);
+        }
+        for (int y : tileY) {
+            out.writeInt(y);
+        }
+        for (double r : ratio) {
+            out.writeDouble(r);
+        }
+    }
+
+    static LinkTileIndex read(ByteBuffer buffer, NetworkSnapshot network, int tileSize, int total) {
+        int[] counts = new int[network.linkCount()];
+        int[] tileX = new int[total];
+        int[] tileY = new int[total];
+        double[] ratio = new double[total];
+        buffer.asIntBuffer().get(counts);
+        buffer.position(buffer.position() + 4 * counts.length);
+        buffer.asIntBuffer().get(tileX);
+        buffer.position(buffer.position() + 4 * total);
+        buffer.asIntBuffer().get(tileY);
+        buffer.position(buffer.position() + 4 * total);
+        buffer.asDoubleBuffer().get(ratio);
+        buffer.position(buffer.position() + 8 * total);
+        return fromCounts(network, tileSize, counts, tileX, tileY, ratio);
+    }
+}
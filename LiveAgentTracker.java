@@ -0,0 +1,100 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.StartupListener;
+
+import javax.inject.Inject;
+import java.util.regex.Pattern;
+
+// The tracker attached to a running simulation instead of a finished events file: every iteration gets a fresh
+// handler on the controler's events manager, so the tile/hour and person results of the iteration are there when
+// it ends, without a pass over output_events.xml.gz. While the mobsim runs, the current persons per tile can be
+// polled from getOccupancy() on any thread. Installed with AgentTrackerModule.
+public class LiveAgentTracker implements StartupListener, IterationStartsListener, IterationEndsListener {
+
+    @Inject
+    private EventsManager eventsManager;
+
+    @Inject
+    private Network network;
+
+    private final Pattern[] ignorePatterns;
+    private final AgentTrackerConfig config = new AgentTrackerConfig();
+    private LiveTileOccupancy occupancy;
+    private NetworkSnapshot networkSnapshot;
+    private LinkTileIndex tileIndex;
+    private AgentTrackerEventHandler handler;
+
+    public LiveAgentTracker(String[] ignoreRegex, boolean ignorePtAgents) {
+        this.ignorePatterns = AgentTracker.ignorePatterns(ignoreRegex, ignorePtAgents);
+    }
+
+    public AgentTrackerConfig getConfig() {
+        return config;
+    }
+
+    // Created on first use with the liveInterval configured by then.
+    public synchronized LiveTileOccupancy getOccupancy() {
+        if (occupancy == null) {
+            occupancy = new LiveTileOccupancy(config.getLiveInterval());
+        }
+        return occupancy;
+    }
+
+    @Override
+    public void notifyStartup(StartupEvent event) {
+        networkSnapshot = NetworkSnapshot.of(network);
+        tileIndex = LinkTileIndex.build(networkSnapshot, config.getTileSize());
+    }
+
+    @Override
+    public void notifyIterationStarts(IterationStartsEvent event) {
+        // the results of the previous iteration are replaced
+        close();
+        handler = new AgentTrackerEventHandler(networkSnapshot, tileIndex, ignorePatterns, config);
+        LiveTileOccupancy occupancy = getOccupancy();
+        occupancy.reset();
+        handler.setLiveOccupancy(occupancy);
+        eventsManager.addHandler(handler);
+    }
+
+    @Override
+    public void notifyIterationEnds(IterationEndsEvent event) {
+        // the events of the iteration are all processed by now
+        eventsManager.removeHandler(handler);
+        getOccupancy().publishNow();
+    }
+
+    private AgentTrackerEventHandler handler() {
+        if (handler == null) {
+            throw new IllegalStateException("No iteration ran yet");
+        }
+        return handler;
+    }
+
+    public void savePersonsTimeListToJson(String filePath) {
+        handler().savePersonsTimeListToJson(filePath);
+    }
+
+    public void savePersonToTileMapCsv(String filePath) {
+        handler().savePersonToTileMapCsv(filePath);
+    }
+
+    public void export(TrackerExport export) {
+        handler().export(export);
+    }
+
+    // Releases the off-heap segments of the last iteration once all exports are written.
+    public void close() {
+        if (handler != null) {
+            handler.close();
+            handler = null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.matsim.project;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Number of tracked persons currently in every tile while a simulation runs: a person counts in the tile of the
+// middle of the link it was last seen on, at an activity or on a leg. The handler keeps the counts on the events
+// thread, one move per event, and publishes them every liveInterval seconds of simulation time.
+// Publishing copies the counts into the one of two buffers that readers are not sent to and then switches over,
+// guarded by a sequence number per buffer (odd while it is written). Readers poll snapshot() from any thread and
+// retry if the buffer changed under them; the events thread never waits for a reader.
+public class LiveTileOccupancy {
+
+    // A published state: tile coordinates and persons in them at the given simulation time.
+    public static final class Snapshot {
+        private final double time;
+        private final int[] tileX;
+        private final int[] tileY;
+        private final int[] persons;
+
+        private Snapshot(double time, int[] tileX, int[] tileY, int[] persons) {
+            this.time = time;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.persons = persons;
+        }
+
+        public double time() {
+            return time;
+        }
+
+        public int size() {
+            return persons.length;
+        }
+
+        public int tileX(int i) {
+            return tileX[i];
+        }
+
+        public int tileY(int i) {
+            return tileY[i];
+        }
+
+        public int persons(int i) {
+            return persons[i];
+        }
+    }
+
+    private static final class Buffer {
+        volatile long sequence = 0;
+        double time;
+        int size;
+        int[] tileX = new int[0];
+        int[] tileY = new int[0];
+        int[] persons = new int[0];
+    }
+
+    private final int interval;
+    private double nextPublish;
+    private double clock = 0;
+
+    // written on the events thread only
+    private final Map<Long, Integer> tileIds = new HashMap<>();
+    private int[] tileX = new int[64];
+    private int[] tileY = new int[64];
+    private int[] persons = new int[64];
+    private int tileCount = 0;
+    // link index -> tile id + 1, 0 if the link was not seen yet
+    private int[] linkTiles = new int[0];
+    // person index -> tile id + 1, 0 if the person has no location yet
+    private int[] personTiles = new int[0];
+
+    private final Buffer[] buffers = { new Buffer(), new Buffer() };
+    private volatile int published = 0;
+
+    public LiveTileOccupancy(int interval) {
+        this.interval = interval;
+        this.nextPublish = interval;
+    }
+
+    // Tile of the link, or -1 if it has to be added with addLink first.
+    public int linkTile(int linkIndex) {
+        return linkIndex < linkTiles.length ? linkTiles[linkIndex] - 1 : -1;
+    }
+
+    public int addLink(int linkIndex, int x, int y) {
+        long key = ((long) x << 32) | (y & 0xFFFFFFFFL);
+        Integer tile = tileIds.get(key);
+        if (tile == null) {
+            if (tileCount == persons.length) {
+                tileX = Arrays.copyOf(tileX, tileCount * 2);
+                tileY = Arrays.copyOf(tileY, tileCount * 2);
+                persons = Arrays.copyOf(persons, tileCount * 2);
+            }
+            tileX[tileCount] = x;
+            tileY[tileCount] = y;
+            tile = tileCount++;
+            tileIds.put(key, tile);
+        }
+        if (linkIndex >= linkTiles.length) {
+            linkTiles = Arrays.copyOf(linkTiles, Math.max(linkIndex + 1, linkTiles.length * 2));
+        }
+        linkTiles[linkIndex] = tile + 1;
+        return tile;
+    }
+
+    public void move(int personIndex, int tile) {
+        if (personIndex >= personTiles.length) {
+            personTiles = Arrays.copyOf(personTiles, Math.max(personIndex + 1, personTiles.length * 2));
+        }
+        int current = personTiles[personIndex] - 1;
+        if (current == tile) {
+            return;
+        }
+        if (current >= 0) {
+            persons[current]--;
+        }
+        persons[tile]++;
+        personTiles[personIndex] = tile + 1;
+    }
+
+    // Called with the time of every event; publishes once the clock passes the next interval.
+    public void advance(double time) {
+        clock = time;
+        if (time >= nextPublish) {
+            publish(time);
+            nextPublish = (Math.floor(time / interval) + 1) * interval;
+        }
+    }
+
+    // Publishes the counts at the time of the last event, e.g. at the end of an iteration.
+    public void publishNow() {
+        publish(clock);
+    }
+
+    // Everybody leaves for the next iteration; readers keep seeing the last published occupancy until then.
+    public void reset() {
+        Arrays.fill(persons, 0);
+        Arrays.fill(personTiles, 0);
+        nextPublish = interval;
+        clock = 0;
+    }
+
+    private void publish(double time) {
+        Buffer buffer = buffers[1 - published];
+        buffer.sequence++;
+        // the copy must not become visible before the odd sequence number
+        VarHandle.storeStoreFence();
+        if (buffer.persons.length < tileCount) {
+            buffer.tileX = new int[tileX.length];
+            buffer.tileY = new int[tileY.length];
+            buffer.persons = new int[persons.length];
+        }
+        System.arraycopy(tileX, 0, buffer.tileX, 0, tileCount);
+        System.arraycopy(tileY, 0, buffer.tileY, 0, tileCount);
+        System.arraycopy(persons, 0, buffer.persons, 0, tileCount);
+        buffer.size = tileCount;
+        buffer.time = time;
+        buffer.sequence++;
+        published = 1 - published;
+    }
+
+    // The last published occupancy, empty before the first one. Tiles that were occupied once stay in it with 0.
+    public Snapshot snapshot() {
+        while (true) {
+            Buffer buffer = buffers[published];
+            long sequence = buffer.sequence;
+            if ((sequence & 1) == 0) {
+                int size = buffer.size;
+                int[] x = buffer.tileX;
+                int[] y = buffer.tileY;
+                int[] count = buffer.persons;
+                double time = buffer.time;
+                // arrays that were replaced while reading may be shorter than size, the sequence check fails then
+                if (size <= x.length && size <= y.length && size <= count.length) {
+                    Snapshot snapshot = new Snapshot(time, Arrays.copyOf(x, size), Arrays.copyOf(y, size),
+                            Arrays.copyOf(count, size));
+                    VarHandle.loadLoadFence();
+                    if (buffer.sequence == sequence) {
+                        return snapshot;
+                    }
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
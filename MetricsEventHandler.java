@@ -0,0 +1,134 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+
+// Sits between the events manager and the tracker's handler on the reader thread. Counts the events per type,
+// times the handler on every SAMPLE-th event (timing every event would cost about as much as handling it)
+// and prints a progress line every progressInterval seconds.
+class MetricsEventHandler implements TrackerEventHandler {
+
+    private static final int SAMPLE = 16;
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final TrackerEventHandler handler;
+    private final TrackerMetrics metrics;
+    private final long progressNanos;
+
+    private long events = 0;
+    private long lastProgress;
+    private long lastProgressEvents = 0;
+
+    public MetricsEventHandler(TrackerEventHandler handler, TrackerMetrics metrics, int progressInterval) {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.progressNanos = progressInterval * 1_000_000_000L;
+        this.lastProgress = System.nanoTime();
+    }
+
+    private long before(int type) {
+        metrics.countEvent(type);
+        return (++events & (SAMPLE - 1)) == 0 ? System.nanoTime() : NOT_SAMPLED;
+    }
+
+    private void after(long start) {
+        if (start == NOT_SAMPLED) {
+            return;
+        }
+        long now = System.nanoTime();
+        metrics.addReaderHandling((now - start) * SAMPLE);
+        if (progressNanos > 0 && now - lastProgress >= progressNanos) {
+            double eventsPerSecond = (events - lastProgressEvents) * 1e9 / (now - lastProgress);
+            metrics.progress(handler, events, eventsPerSecond);
+            lastProgress = now;
+            lastProgressEvents = events;
+        }
+    }
+
+    @Override
+    public void reset(int iteration) {
+        handler.reset(iteration);
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        long start = before(TrackerMetrics.LINK_ENTER);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(LinkLeaveEvent event) {
+        long start = before(TrackerMetrics.LINK_LEAVE);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        long start = before(TrackerMetrics.ENTERS_VEHICLE);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        long start = before(TrackerMetrics.LEAVES_VEHICLE);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(ActivityStartEvent event) {
+        long start = before(TrackerMetrics.ACTIVITY_START);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(ActivityEndEvent event) {
+        long start = before(TrackerMetrics.ACTIVITY_END);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(PersonDepartureEvent event) {
+        long start = before(TrackerMetrics.DEPARTURE);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public void handleEvent(PersonArrivalEvent event) {
+        long start = before(TrackerMetrics.ARRIVAL);
+        handler.handleEvent(event);
+        after(start);
+    }
+
+    @Override
+    public long knownPersons() {
+        return handler.knownPersons();
+    }
+
+    @Override
+    public long travellingPersons() {
+        return handler.travellingPersons();
+    }
+
+    @Override
+    public long occupiedVehicles() {
+        return handler.occupiedVehicles();
+    }
+
+    @Override
+    public long segmentCount() {
+        return handler.segmentCount();
+    }
+}
@@ -0,0 +1,259 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.network.NetworkUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// What the tracker needs from a network: link ids and from/to node coordinates, in a compact binary file next to
+// the network file (<network>.snapshot.bin) together with the link tile decomposition.
+// The first run parses the network XML and writes the file, later runs memory-map it instead. The file is valid
+// for a network file of the same length and modification time, or, if only the time differs, the same checksum.
+class NetworkSnapshot {
+
+    private static final int MAGIC = 0x4E534E31; // "NSN1"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".snapshot.bin";
+    // fromX, fromY, toX, toY
+    private static final int RECORD_BYTES = 32;
+
+    private final Id<Link>[] linkIds;
+    private final ByteBuffer coords;
+    // link Id index -> record, -1 for links that are not part of the network
+    private final int[] records;
+    private LinkTileIndex tileIndex;
+
+    private NetworkSnapshot(Id<Link>[] linkIds, ByteBuffer coords) {
+        this.linkIds = linkIds;
+        this.coords = coords;
+        this.records = new int[Id.getNumberOfIds(Link.class)];
+        Arrays.fill(records, -1);
+        for (int record = 0; record < linkIds.length; record++) {
+            records[linkIds[record].index()] = record;
+        }
+    }
+
+    public static NetworkSnapshot of(Network network) {
+        Link[] links = network.getLinks().values().toArray(new Link[0]);
+        Id<Link>[] linkIds = new Id[links.length];
+        ByteBuffer coords = ByteBuffer.allocate(links.length * RECORD_BYTES);
+        for (int record = 0; record < links.length; record++) {
+            Link link = links[record];
+            linkIds[record] = link.getId();
+            coords.putDouble(link.getFromNode().getCoord().getX());
+            coords.putDouble(link.getFromNode().getCoord().getY());
+            coords.putDouble(link.getToNode().getCoord().getX());
+            coords.putDouble(link.getToNode().getCoord().getY());
+        }
+        return new NetworkSnapshot(linkIds, coords);
+    }
+
+    // Maps the snapshot of the network file with a tile index of the given tile size. A missing or stale snapshot
+    // is created from the network XML; a snapshot with another tile size gets its tiles rebuilt from the coordinates.
+    public static NetworkSnapshot loadOrCreate(String networkPath, int tileSize) {
+        File source = new File(networkPath);
+        File file = new File(networkPath + SUFFIX);
+        NetworkSnapshot snapshot = null;
+        if (file.isFile()) {
+            try {
+                snapshot = read(file, source, tileSize);
+            } catch (IOException e) {
+                System.out.println("Could not read network snapshot " + file + ": " + e.getMessage());
+            }
+        }
+        if (snapshot != null && snapshot.tileIndex != null) {
+            System.out.println("Loaded network snapshot from " + file);
+            return snapshot;
+        }
+        if (snapshot == null) {
+            snapshot = of(NetworkUtils.readNetwork(networkPath));
+        }
+        snapshot.tileIndex = LinkTileIndex.build(snapshot, tileSize);
+        try {
+            snapshot.write(file, source);
+        } catch (IOException e) {
+            System.out.println("Could not write network snapshot " + file + ": " + e.getMessage());
+        }
+        return snapshot;
+    }
+
+    // null if the network file changed since the snapshot was written
+    static NetworkSnapshot read(File file, File source, int tileSize) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        long length = buffer.getLong();
+        long mtime = buffer.getLong();
+        long checksum = buffer.getLong();
+        if (length != source.length() || (mtime != source.lastModified() && checksum != checksum(source))) {
+            return null;
+        }
+        int linkCount = buffer.getInt();
+        int storedTileSize = buffer.getInt();
+        int tileCount = buffer.getInt();
+
+        Id<Link>[] linkIds = new Id[linkCount];
+        for (int record = 0; record < linkCount; record++) {
+            byte[] id = new byte[buffer.getInt()];
+            buffer.get(id);
+            linkIds[record] = Id.createLinkId(new String(id, StandardCharsets.UTF_8));
+        }
+        buffer.position(align(buffer.position()));
+        ByteBuffer coords = buffer.slice();
+        coords.limit(linkCount * RECORD_BYTES);
+        buffer.position(buffer.position() + linkCount * RECORD_BYTES);
+
+        NetworkSnapshot snapshot = new NetworkSnapshot(linkIds, coords);
+        if (storedTileSize == tileSize) {
+            snapshot.tileIndex = LinkTileIndex.read(buffer, snapshot, tileSize, tileCount);
+        }
+        return snapshot;
+    }
+
+    // Layout: header, link ids, padding to 8 bytes, coordinate records, tile section of the tile index.
+    // Written to a temporary file next to it and moved over it, so trackers that still have the previous snapshot
+    // mapped, in this process or another one, keep reading the old file.
+    void write(File file, File source) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            writeTo(temp, source);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private void writeTo(File file, File source) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeLong(checksum(source));
+            out.writeInt(linkIds.length);
+            out.writeInt(tileIndex.getTileSize());
+            out.writeInt(tileIndex.size());
+            for (Id<Link> linkId : linkIds) {
+                byte[] id = linkId.toString().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(id.length);
+                out.write(id);
+            }
+            while (out.size() != align(out.size())) {
+                out.writeByte(0);
+            }
+            for (int record = 0; record < linkIds.length; record++) {
+                out.writeDouble(fromX(record));
+                out.writeDouble(fromY(record));
+                out.writeDouble(toX(record));
+                out.writeDouble(toY(record));
+            }
+            tileIndex.write(out, this);
+        }
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    static long checksum(File source) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    public LinkTileIndex tileIndex() {
+        return tileIndex;
+    }
+
+    public int linkCount() {
+        return linkIds.length;
+    }
+
+    public Id<Link> linkId(int record) {
+        return linkIds[record];
+    }
+
+    // -1 if the link is not part of the network
+    public int record(Id<Link> linkId) {
+        int slot = linkId.index();
+        return slot < records.length ? records[slot] : -1;
+    }
+
+    public double fromX(int record) {
+        return coords.getDouble(record * RECORD_BYTES);
+    }
+
+    public double fromY(int record) {
+        return coords.getDouble(record * RECORD_BYTES + 8);
+    }
+
+    public double toX(int record) {
+        return coords.getDouble(record * RECORD_BYTES + 16);
+    }
+
+    public double toY(int record) {
+        return coords.getDouble(record * RECORD_BYTES + 24);
+    }
+
+    // minX, minY, maxX, maxY over all node coordinates, like the bounding box of the config
+    public double[] boundingBox() {
+        double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.NEGATIVE_INFINITY };
+        for (int record = 0; record < linkIds.length; record++) {
+            box[0] = Math.min(box[0], Math.min(fromX(record), toX(record)));
+            box[1] = Math.min(box[1], Math.min(fromY(record), toY(record)));
+            box[2] = Math.max(box[2], Math.max(fromX(record), toX(record)));
+            box[3] = Math.max(box[3], Math.max(fromY(record), toY(record)));
+        }
+        return box;
+    }
+
+    public Coord fromCoord(Id<Link> linkId) {
+        int record = checkedRecord(linkId);
+        return new Coord(fromX(record), fromY(record));
+    }
+
+    public Coord toCoord(Id<Link> linkId) {
+        int record = checkedRecord(linkId);
+        return new Coord(toX(record), toY(record));
+    }
+
+    private int checkedRecord(Id<Link> linkId) {
+        int record = record(linkId);
+        if (record == -1) {
+            throw new IllegalArgumentException("Link " + linkId + " is not part of the network");
+        }
+        return record;
+    }
+}
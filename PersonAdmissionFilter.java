@@ -0,0 +1,139 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Decides once per person whether its events are tracked and remembers the answer in two bitsets by Id index,
+// so every later event of the person costs a bit lookup instead of regex matches on its id.
+// A person is rejected if its id matches one of the ignore patterns, starts with one of the ignored prefixes
+// (e.g. a subpopulation like "freight_"), is not in the sample, or if its first event with a link lies outside the
+// bounding box.
+class PersonAdmissionFilter {
+
+    private final NetworkSnapshot network;
+    private final Pattern[] ignorePatterns;
+    private final String[] ignorePrefixes;
+    private final double[] boundingBox;
+    private final double sampleRate;
+    private final Set<String> ignoredLegModes;
+
+    private long[] decided = new long[0];
+    private long[] admitted = new long[0];
+
+    public PersonAdmissionFilter(NetworkSnapshot network, Pattern[] ignorePatterns, AgentTrackerConfig config) {
+        this.network = network;
+        this.ignorePatterns = ignorePatterns;
+        this.ignorePrefixes = config.getIgnorePrefixes();
+        this.boundingBox = config.getBoundingBox();
+        this.sampleRate = config.getSampleRate();
+        this.ignoredLegModes = new HashSet<>(Arrays.asList(config.getIgnoredLegModes()));
+    }
+
+    // linkId may be null for events without a location; with a bounding box such a person stays undecided
+    // until an event with a link arrives, unless its id already rejects it.
+    public boolean admit(Id<Person> personId, Id<Link> linkId) {
+        int index = personId.index();
+        int word = index >>> 6;
+        long bit = 1L << index;
+        if (word < decided.length && (decided[word] & bit) != 0) {
+            return (admitted[word] & bit) != 0;
+        }
+
+        boolean admit = admitId(personId.toString());
+        if (admit && boundingBox != null) {
+            if (linkId == null) {
+                return true;
+            }
+            admit = insideBoundingBox(linkId);
+        }
+        decide(index, admit);
+        return admit;
+    }
+
+    private void decide(int index, boolean admit) {
+        int word = index >>> 6;
+        if (word >= decided.length) {
+            int words = Math.max(word + 1, decided.length * 2);
+            decided = Arrays.copyOf(decided, words);
+            admitted = Arrays.copyOf(admitted, words);
+        }
+        decided[word] |= 1L << index;
+        if (admit) {
+            admitted[word] |= 1L << index;
+        }
+    }
+
+    // By person index, for checkpoints: persons below capacity() may be decided.
+    public int capacity() {
+        return decided.length << 6;
+    }
+
+    public boolean isDecided(int index) {
+        int word = index >>> 6;
+        return word < decided.length && (decided[word] & (1L << index)) != 0;
+    }
+
+    public boolean isAdmitted(int index) {
+        int word = index >>> 6;
+        return word < admitted.length && (admitted[word] & (1L << index)) != 0;
+    }
+
+    public void restore(Id<Person> personId, boolean admit) {
+        decide(personId.index(), admit);
+    }
+
+    // Whether the person is in a sample of the given rate. The id's hash is spread over [0, 1) and compared to the
+    // rate, so the choice only depends on the id: it is the same in every run, and a smaller sample is part of a
+    // larger one.
+    static boolean inSample(String personId, double sampleRate) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        long hash = personId.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+
+    private boolean admitId(String personId) {
+        if (!inSample(personId, sampleRate)) {
+            return false;
+        }
+        for (Pattern pattern : ignorePatterns) {
+            if (pattern.matcher(personId).matches()) {
+                return false;
+            }
+        }
+        for (String prefix : ignorePrefixes) {
+            if (personId.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // by the middle of the link, where the tracker places activities
+    private boolean insideBoundingBox(Id<Link> linkId) {
+        int record = network.record(linkId);
+        if (record == -1) {
+            return false;
+        }
+        double x = (network.fromX(record) + network.toX(record)) / 2;
+        double y = (network.fromY(record) + network.toY(record)) / 2;
+        return x >= boundingBox[0] && y >= boundingBox[1] && x <= boundingBox[2] && y <= boundingBox[3];
+    }
+
+    // Legs with these modes are not tracked, the person stays at its activity tile for them.
+    public boolean isIgnoredLegMode(String legMode) {
+        return ignoredLegModes.contains(legMode);
+    }
+}
@@ -0,0 +1,95 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.project.utils.FastCsvWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes the PersonId,X,Y,StartTime,EndTime rows of the segments an export hands to it. A CSV split into partition
+// files by person id hash gets one writer per file, each keeping the persons of its partition, so the files are
+// written in parallel.
+class PersonTileCsvWriter implements SegmentSink {
+
+    private static final String[] HEADER = { "PersonId", "X", "Y", "StartTime", "EndTime" };
+
+    private final FastCsvWriter writer;
+    private final int partition;
+    private final int partitions;
+    // the person of the previous segment, its encoded id and whether it belongs to this file
+    private int lastPerson = -1;
+    private byte[] person;
+    private boolean included;
+
+    public PersonTileCsvWriter(String filePath, int partition, int partitions) throws IOException {
+        this.writer = new FastCsvWriter(filePath);
+        this.partition = partition;
+        this.partitions = partitions;
+        writer.writeRecord(HEADER);
+    }
+
+    // The writers of the CSV at filePath: the file itself, or its partitions if there is more than one.
+    static List<SegmentSink> writers(String filePath, int partitions) throws IOException {
+        List<SegmentSink> writers = new ArrayList<>();
+        try {
+            if (partitions <= 1) {
+                writers.add(new PersonTileCsvWriter(filePath, 0, 1));
+            } else {
+                for (int i = 0; i < partitions; i++) {
+                    writers.add(new PersonTileCsvWriter(partitionPath(filePath, i), i, partitions));
+                }
+            }
+        } catch (IOException e) {
+            for (SegmentSink opened : writers) {
+                opened.finish();
+            }
+            throw e;
+        }
+        return writers;
+    }
+
+    // stable across runs, unlike the Id index
+    static int partition(Id<Person> personId, int partitions) {
+        return Math.floorMod(personId.toString().hashCode(), partitions);
+    }
+
+    // agent_tracker_details.csv.gz -> agent_tracker_details_part3.csv.gz
+    static String partitionPath(String filePath, int partition) {
+        String suffix = "";
+        for (String extension : new String[] { ".csv.gz", ".csv", ".gz" }) {
+            if (filePath.endsWith(extension)) {
+                suffix = extension;
+                break;
+            }
+        }
+        return filePath.substring(0, filePath.length() - suffix.length()) + "_part" + partition + suffix;
+    }
+
+    @Override
+    public void accept(Batch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.person(i) != lastPerson) {
+                lastPerson = batch.person(i);
+                Id<Person> personId = Id.get(lastPerson, Person.class);
+                included = partitions <= 1 || partition(personId, partitions) == partition;
+                person = included ? FastCsvWriter.encode(personId.toString()) : null;
+            }
+            if (!included) {
+                continue;
+            }
+            writer.field(person);
+            writer.field(batch.tileX(i));
+            writer.field(batch.tileY(i));
+            writer.field(batch.start(i));
+            writer.field(batch.end(i));
+            writer.endRecord();
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,637 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+// Reads an events XML file (plain or .gz) for the tracker in three stages: one thread reads and decompresses the
+// file into chunks that end before a tag, one parses the chunks, and the calling thread hands the events to the
+// handler. Stages are connected by bounded queues, of chunks and of event batches, so a slow handler holds the
+// reading back instead of filling the heap.
+// The parser works on the bytes. It reads the type attribute first (MATSim writes time and type first) and drops
+// an event right there unless it is one of the types the handler implements; only those become event objects.
+// Ids and strings are created once per distinct value and looked up by their bytes afterwards.
+// With a sample rate below 1 the parser also drops the events of persons outside the sample, before their Ids are
+// created, and the link events of vehicles without a sampled person in them; the handler makes the same choice, so
+// this only saves the work, it does not change the result.
+class PipelinedEventsReader {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int QUEUED_CHUNKS = 8;
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES = 64;
+    // how often a stage waiting on a queue checks whether the reader was closed or another stage failed
+    private static final long WAIT_MILLIS = 100;
+    private static final Event[] END = new Event[0];
+    private static final Chunk LAST = new Chunk(new byte[0], 0);
+
+    private static final byte[] EVENT_TAG = bytes("<event");
+    private static final byte[][] TYPES = new byte[TrackerMetrics.EVENT_TYPES.length][];
+
+    // attributes the tracked events are built from
+    private static final int TIME = 0;
+    private static final int TYPE = 1;
+    private static final int PERSON = 2;
+    private static final int VEHICLE = 3;
+    private static final int LINK = 4;
+    private static final int ACT_TYPE = 5;
+    private static final int LEG_MODE = 6;
+    private static final int ROUTING_MODE = 7;
+    private static final int FACILITY = 8;
+    private static final int X = 9;
+    private static final int Y = 10;
+    private static final byte[][] ATTRIBUTES = { bytes("time"), bytes("type"), bytes("person"), bytes("vehicle"),
+            bytes("link"), bytes("actType"), bytes("legMode"), bytes("computationalRoutingMode"),
+            bytes("facility"), bytes("x"), bytes("y") };
+
+    static {
+        for (int type = 0; type < TYPES.length; type++) {
+            TYPES[type] = bytes(TrackerMetrics.EVENT_TYPES[type]);
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] bytes;
+        final int length;
+
+        Chunk(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    private final TrackerEventHandler handler;
+    private final double sampleRate;
+    private volatile Throwable failure;
+    // set by closing the batches, e.g. when the handler failed; the stages stop without queuing anything more
+    private volatile boolean stopped = false;
+
+    // parser state, only used on the parse thread
+    private final int[] valueStart = new int[ATTRIBUTES.length];
+    private final int[] valueEnd = new int[ATTRIBUTES.length];
+    // null for persons outside the sample
+    private final ValueCache<Id<Person>> personIds;
+    private final ValueCache<Id<Vehicle>> vehicleIds = new ValueCache<>(id -> Id.create(id, Vehicle.class));
+    private final ValueCache<Id<Link>> linkIds = new ValueCache<>(id -> Id.create(id, Link.class));
+    private final ValueCache<Id<ActivityFacility>> facilityIds = new ValueCache<>(
+            id -> Id.create(id, ActivityFacility.class));
+    private final ValueCache<String> strings = new ValueCache<>(value -> value);
+    // sampled persons per vehicle, only filled for a sample
+    private final VehicleOccupancy sampledOccupancy = new VehicleOccupancy();
+    private long skippedEvents = 0;
+    private long unsampledEvents = 0;
+
+    public PipelinedEventsReader(TrackerEventHandler handler) {
+        this(handler, 1);
+    }
+
+    public PipelinedEventsReader(TrackerEventHandler handler, double sampleRate) {
+        this.handler = handler;
+        this.sampleRate = sampleRate;
+        this.personIds = new ValueCache<>(
+                id -> PersonAdmissionFilter.inSample(id, sampleRate) ? Id.create(id, Person.class) : null);
+    }
+
+    // Events XML, plain or gzip compressed; other formats need MatsimEventsReader.
+    static boolean canRead(String filePath) {
+        return filePath.endsWith(".xml") || filePath.endsWith(".xml.gz");
+    }
+
+    // events of types the handler does not implement
+    public long skippedEvents() {
+        return skippedEvents;
+    }
+
+    // events of persons outside the sample and of vehicles without sampled persons
+    public long unsampledEvents() {
+        return unsampledEvents;
+    }
+
+    public void readFile(String filePath) {
+        try (Batches batches = readBatches(filePath)) {
+            Event[] batch;
+            while ((batch = batches.next()) != null) {
+                for (Event event : batch) {
+                    ShardedEventHandler.dispatch(handler, event);
+                }
+            }
+        }
+    }
+
+    // Starts reading the file and hands out the parsed batches to the caller instead of the handler, e.g. to merge
+    // two files by time. Closing stops the stages if the caller gives up early.
+    Batches readBatches(String filePath) {
+        BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        BlockingQueue<Event[]> batches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        // LAST only follows a complete file; END follows anything, so the caller always learns about a failure
+        Thread inflater = start("agent-tracker-inflate", () -> inflate(filePath, chunks),
+                () -> failure == null && put(chunks, LAST, true));
+        Thread parser = start("agent-tracker-parse", () -> parse(chunks, batches), () -> put(batches, END, true));
+        return new Batches(filePath, batches, inflater, parser);
+    }
+
+    final class Batches implements AutoCloseable {
+        private final String filePath;
+        private final BlockingQueue<Event[]> batches;
+        private final Thread inflater;
+        private final Thread parser;
+        private boolean ended = false;
+
+        private Batches(String filePath, BlockingQueue<Event[]> batches, Thread inflater, Thread parser) {
+            this.filePath = filePath;
+            this.batches = batches;
+            this.inflater = inflater;
+            this.parser = parser;
+        }
+
+        // The next batch of events in file order, null after the last one. Fails if reading the file failed.
+        Event[] next() {
+            if (ended) {
+                return null;
+            }
+            try {
+                Event[] batch = batches.take();
+                if (batch != END) {
+                    return batch;
+                }
+                ended = true;
+                // after a failure the other stage gives up waiting on its queue, so both end
+                inflater.join();
+                parser.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (failure instanceof IOException) {
+                throw new UncheckedIOException("Reading " + filePath + " failed", (IOException) failure);
+            } else if (failure != null) {
+                throw new RuntimeException("Reading " + filePath + " failed", failure);
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // stops the stages if the handler failed
+            stopped = true;
+            inflater.interrupt();
+            parser.interrupt();
+        }
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private interface Last {
+        boolean put() throws InterruptedException;
+    }
+
+    // Runs the stage, records its failure and then queues its last item, unless the reader was closed.
+    private Thread start(String name, Stage stage, Last last) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // stopped by the reading thread
+            } catch (Throwable t) {
+                if (failure == null) {
+                    failure = t;
+                }
+            }
+            try {
+                last.put();
+            } catch (InterruptedException e) {
+                // stopped by the reading thread
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Waits for room in the queue, but gives up once the reader is closed or, except for the last item of a stage,
+    // once a stage failed. A stage never blocks on a queue nobody takes from any more.
+    private <T> boolean put(BlockingQueue<T> queue, T item, boolean last) throws InterruptedException {
+        while (!stopped && (last || failure == null)) {
+            if (queue.offer(item, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // null once the reader is closed or a stage failed
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        while (!stopped && failure == null) {
+            T item = queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    // Chunks end right before the last '<' read, which cannot occur inside an attribute value, so every tag lies
+    // completely in one chunk. The rest is carried over into the next one.
+    private void inflate(String filePath, BlockingQueue<Chunk> chunks) throws Exception {
+        try (InputStream in = open(filePath)) {
+            byte[] carry = new byte[0];
+            while (true) {
+                byte[] buffer = new byte[Math.max(CHUNK_SIZE, carry.length * 2)];
+                System.arraycopy(carry, 0, buffer, 0, carry.length);
+                int length = carry.length;
+                int read = 0;
+                while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                }
+                if (read == -1) {
+                    put(chunks, new Chunk(buffer, length), false);
+                    break;
+                }
+                int cut = length - 1;
+                while (cut > 0 && buffer[cut] != '<') {
+                    cut--;
+                }
+                if (cut <= 0) {
+                    // a single tag longer than the buffer
+                    carry = Arrays.copyOf(buffer, length);
+                    continue;
+                }
+                if (!put(chunks, new Chunk(buffer, cut), false)) {
+                    return;
+                }
+                carry = Arrays.copyOfRange(buffer, cut, length);
+            }
+        }
+    }
+
+    private static InputStream open(String filePath) throws IOException {
+        InputStream in = new FileInputStream(filePath);
+        if (filePath.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    private void parse(BlockingQueue<Chunk> chunks, BlockingQueue<Event[]> batches) throws Exception {
+        Event[] batch = new Event[BATCH_SIZE];
+        int size = 0;
+        while (true) {
+            Chunk chunk = take(chunks);
+            if (chunk == null) {
+                return;
+            }
+            if (chunk == LAST) {
+                break;
+            }
+            byte[] bytes = chunk.bytes;
+            int position = 0;
+            while ((position = indexOf(bytes, (byte) '<', position, chunk.length)) >= 0) {
+                if (!startsWith(bytes, position, chunk.length, EVENT_TAG) || position + EVENT_TAG.length
+                        >= chunk.length || bytes[position + EVENT_TAG.length] > ' ') {
+                    position++;
+                    continue;
+                }
+                position = readAttributes(bytes, position + EVENT_TAG.length, chunk.length);
+                Event event = event(bytes);
+                if (event == null) {
+                    continue;
+                }
+                batch[size++] = event;
+                if (size == BATCH_SIZE) {
+                    if (!put(batches, batch, false)) {
+                        return;
+                    }
+                    batch = new Event[BATCH_SIZE];
+                    size = 0;
+                }
+            }
+            if (failure != null) {
+                return;
+            }
+        }
+        if (size > 0) {
+            put(batches, Arrays.copyOf(batch, size), false);
+        }
+    }
+
+    // Notes where the values of the known attributes are, up to the end of the tag or until the type turns out to
+    // be one the handler does not need. Returns the position to continue from.
+    private int readAttributes(byte[] bytes, int position, int end) {
+        Arrays.fill(valueStart, -1);
+        while (position < end) {
+            byte c = bytes[position];
+            if (c == '/' || c == '>') {
+                return position + 1;
+            }
+            if (c <= ' ') {
+                position++;
+                continue;
+            }
+            int nameStart = position;
+            while (position < end && bytes[position] != '=' && bytes[position] > ' ') {
+                position++;
+            }
+            int nameEnd = position;
+            while (position < end && bytes[position] != '"' && bytes[position] != '\'') {
+                position++;
+            }
+            if (position == end) {
+                return end;
+            }
+            byte quote = bytes[position++];
+            int start = position;
+            while (position < end && bytes[position] != quote) {
+                position++;
+            }
+            int attribute = attribute(bytes, nameStart, nameEnd);
+            if (attribute >= 0) {
+                valueStart[attribute] = start;
+                valueEnd[attribute] = position;
+                if (attribute == TYPE && type(bytes) < 0) {
+                    return position;
+                }
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private static int attribute(byte[] bytes, int start, int end) {
+        for (int attribute = 0; attribute < ATTRIBUTES.length; attribute++) {
+            if (equals(ATTRIBUTES[attribute], bytes, start, end)) {
+                return attribute;
+            }
+        }
+        return -1;
+    }
+
+    // TrackerMetrics index of the type read, -1 for other types
+    private int type(byte[] bytes) {
+        for (int type = 0; type < TYPES.length; type++) {
+            if (equals(TYPES[type], bytes, valueStart[TYPE], valueEnd[TYPE])) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    private Event event(byte[] bytes) {
+        if (valueStart[TYPE] < 0 || valueStart[TIME] < 0) {
+            return null;
+        }
+        int type = type(bytes);
+        if (type < 0) {
+            skippedEvents++;
+            return null;
+        }
+        if (sampleRate < 1 && !inSample(bytes, type)) {
+            unsampledEvents++;
+            return null;
+        }
+        double time = parseDouble(bytes, valueStart[TIME], valueEnd[TIME]);
+        switch (type) {
+        case TrackerMetrics.LINK_ENTER:
+            return new LinkEnterEvent(time, value(bytes, VEHICLE, vehicleIds), value(bytes, LINK, linkIds));
+        case TrackerMetrics.LINK_LEAVE:
+            return new LinkLeaveEvent(time, value(bytes, VEHICLE, vehicleIds), value(bytes, LINK, linkIds));
+        case TrackerMetrics.ENTERS_VEHICLE:
+            return new PersonEntersVehicleEvent(time, value(bytes, PERSON, personIds),
+                    value(bytes, VEHICLE, vehicleIds));
+        case TrackerMetrics.LEAVES_VEHICLE:
+            return new PersonLeavesVehicleEvent(time, value(bytes, PERSON, personIds),
+                    value(bytes, VEHICLE, vehicleIds));
+        case TrackerMetrics.ACTIVITY_START:
+            return new ActivityStartEvent(time, value(bytes, PERSON, personIds), value(bytes, LINK, linkIds),
+                    value(bytes, FACILITY, facilityIds), value(bytes, ACT_TYPE, strings), coord(bytes));
+        case TrackerMetrics.ACTIVITY_END:
+            return new ActivityEndEvent(time, value(bytes, PERSON, personIds), value(bytes, LINK, linkIds),
+                    value(bytes, FACILITY, facilityIds), value(bytes, ACT_TYPE, strings), coord(bytes));
+        case TrackerMetrics.DEPARTURE:
+            return new PersonDepartureEvent(time, value(bytes, PERSON, personIds), value(bytes, LINK, linkIds),
+                    value(bytes, LEG_MODE, strings), value(bytes, ROUTING_MODE, strings));
+        default:
+            return new PersonArrivalEvent(time, value(bytes, PERSON, personIds), value(bytes, LINK, linkIds),
+                    value(bytes, LEG_MODE, strings));
+        }
+    }
+
+    // Boarding and alighting of sampled persons are followed, so the link events of their vehicles pass, whoever
+    // drives them.
+    private boolean inSample(byte[] bytes, int type) {
+        if (type == TrackerMetrics.LINK_ENTER || type == TrackerMetrics.LINK_LEAVE) {
+            Id<Vehicle> vehicleId = value(bytes, VEHICLE, vehicleIds);
+            return vehicleId == null || sampledOccupancy.count(vehicleId) > 0;
+        }
+        if (valueStart[PERSON] < 0) {
+            return true;
+        }
+        Id<Person> personId = value(bytes, PERSON, personIds);
+        if (personId == null) {
+            return false;
+        }
+        if (type == TrackerMetrics.ENTERS_VEHICLE || type == TrackerMetrics.LEAVES_VEHICLE) {
+            Id<Vehicle> vehicleId = value(bytes, VEHICLE, vehicleIds);
+            if (vehicleId != null && type == TrackerMetrics.ENTERS_VEHICLE) {
+                sampledOccupancy.add(vehicleId, personId);
+            } else if (vehicleId != null) {
+                sampledOccupancy.remove(vehicleId, personId);
+            }
+        }
+        return true;
+    }
+
+    private <T> T value(byte[] bytes, int attribute, ValueCache<T> cache) {
+        return valueStart[attribute] < 0 ? null : cache.get(bytes, valueStart[attribute], valueEnd[attribute]);
+    }
+
+    private Coord coord(byte[] bytes) {
+        if (valueStart[X] < 0 || valueStart[Y] < 0) {
+            return null;
+        }
+        return new Coord(parseDouble(bytes, valueStart[X], valueEnd[X]), parseDouble(bytes, valueStart[Y], valueEnd[Y]));
+    }
+
+    // Whole numbers like "21600" or "21600.0" directly, anything else through Double.parseDouble.
+    static double parseDouble(byte[] bytes, int start, int end) {
+        long value = 0;
+        int position = start;
+        while (position < end && position - start < 18 && bytes[position] >= '0' && bytes[position] <= '9') {
+            value = value * 10 + (bytes[position++] - '0');
+        }
+        if (position > start) {
+            if (position == end) {
+                return value;
+            }
+            if (bytes[position] == '.') {
+                position++;
+                while (position < end && bytes[position] == '0') {
+                    position++;
+                }
+                if (position == end) {
+                    return value;
+                }
+            }
+        }
+        return Double.parseDouble(decode(bytes, start, end));
+    }
+
+    // Attribute value with the XML entities resolved.
+    static String decode(byte[] bytes, int start, int end) {
+        String value = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        int position = 0;
+        while (position < value.length()) {
+            char c = value.charAt(position);
+            int semicolon = c == '&' ? value.indexOf(';', position) : -1;
+            if (semicolon < 0) {
+                decoded.append(c);
+                position++;
+                continue;
+            }
+            String entity = value.substring(position + 1, semicolon);
+            switch (entity) {
+            case "amp":
+                decoded.append('&');
+                break;
+            case "lt":
+                decoded.append('<');
+                break;
+            case "gt":
+                decoded.append('>');
+                break;
+            case "quot":
+                decoded.append('"');
+                break;
+            case "apos":
+                decoded.append('\'');
+                break;
+            default:
+                if (entity.startsWith("#x")) {
+                    decoded.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                } else if (entity.startsWith("#")) {
+                    decoded.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                } else {
+                    decoded.append(value, position, semicolon + 1);
+                }
+            }
+            position = semicolon + 1;
+        }
+        return decoded.toString();
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] bytes, int position, int end, byte[] prefix) {
+        return position + prefix.length <= end && equals(prefix, bytes, position, position + prefix.length);
+    }
+
+    private static boolean equals(byte[] expected, byte[] bytes, int start, int end) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Values by the bytes of the attribute, open addressing, so a repeated id costs a hash and a compare instead of
+    // a String and a lookup in the global Id map.
+    private static final class ValueCache<T> {
+        private final Function<String, T> create;
+        private byte[][] keys = new byte[1024][];
+        private Object[] values = new Object[1024];
+        private int size = 0;
+
+        ValueCache(Function<String, T> create) {
+            this.create = create;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(byte[] bytes, int start, int end) {
+            int mask = keys.length - 1;
+            int position = hash(bytes, start, end) & mask;
+            while (keys[position] != null) {
+                if (PipelinedEventsReader.equals(keys[position], bytes, start, end)) {
+                    return (T) values[position];
+                }
+                position = (position + 1) & mask;
+            }
+            T value = create.apply(decode(bytes, start, end));
+            keys[position] = Arrays.copyOfRange(bytes, start, end);
+            values[position] = value;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return value;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new Object[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int position = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+                    while (keys[position] != null) {
+                        position = (position + 1) & mask;
+                    }
+                    keys[position] = oldKeys[i];
+                    values[position] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(byte[] bytes, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
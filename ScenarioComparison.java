@@ -0,0 +1,261 @@
+package org.matsim.project;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.matsim.api.core.v01.events.Event;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.regex.Pattern;
+
+// Compares a base and a variant events file of the same network in one run. Both files are read at the same time
+// and merged by time, each into a handler of its own; the handlers share the network and its link tile index.
+// Once the merged clock is maxOpenSegment past the end of a bin, both handlers credit their open activities up to
+// it, the population difference of every tile is streamed to the output and the bin is freed in both. So only a few
+// bins of either aggregate are in memory at a time, and neither scenario is written out on its own.
+// Output (gzip compressed if the path ends with ".gz"):
+//   {"bins": {"<bin>": {"x,y": {"base": population, "variant": population, "delta": variant - base}}},
+//    "summary": {...}}
+// Tiles come in x, then y order within a bin; a tile is listed if either scenario touched it in the bin.
+class ScenarioComparison {
+
+    private final AgentTrackerEventHandler base;
+    private final AgentTrackerEventHandler variant;
+    private final TrackerEventHandler baseTarget;
+    private final TrackerEventHandler variantTarget;
+    private final TrackerMetrics baseMetrics = new TrackerMetrics();
+    private final TrackerMetrics variantMetrics = new TrackerMetrics();
+    private final AgentTrackerConfig config;
+    private final int binWidth;
+    private final int maxOpenSegment;
+
+    // bins below this one are written and freed
+    private int nextBin = 0;
+
+    // summary over all tile/bins written
+    private long tileBins = 0;
+    private long onlyBase = 0;
+    private long onlyVariant = 0;
+    private long changed = 0;
+    private double baseTotal = 0;
+    private double variantTotal = 0;
+    private double absoluteDeltas = 0;
+    private double squaredDeltas = 0;
+    private double largestIncrease = 0;
+    private String largestIncreaseTile = null;
+    private int largestIncreaseBin = -1;
+    private double largestDecrease = 0;
+    private String largestDecreaseTile = null;
+    private int largestDecreaseBin = -1;
+
+    // The config should not keep person segments or write incremental output; the comparison does not use them.
+    public ScenarioComparison(NetworkSnapshot network, Pattern[] ignorePatterns, AgentTrackerConfig config) {
+        this.config = config;
+        this.binWidth = config.getBinWidth();
+        this.maxOpenSegment = config.getMaxOpenSegment();
+        this.base = new AgentTrackerEventHandler(network, network.tileIndex(), ignorePatterns, config, baseMetrics);
+        this.variant = new AgentTrackerEventHandler(network, network.tileIndex(), ignorePatterns, config,
+                variantMetrics);
+        // both files advance together, so the progress of the base stands for both
+        this.baseTarget = new MetricsEventHandler(base, baseMetrics, config.getProgressInterval());
+        this.variantTarget = new MetricsEventHandler(variant, variantMetrics, 0);
+    }
+
+    public void run(String baseEventsPath, String variantEventsPath, String outputPath) {
+        long start = System.nanoTime();
+        try (OutputStream out = TileHourJsonWriter.openOutput(outputPath);
+                JsonGenerator generator = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+                PipelinedEventsReader.Batches baseBatches = new PipelinedEventsReader(baseTarget,
+                        config.getSampleRate()).readBatches(baseEventsPath);
+                PipelinedEventsReader.Batches variantBatches = new PipelinedEventsReader(variantTarget,
+                        config.getSampleRate()).readBatches(variantEventsPath)) {
+            if (config.isPrettyJson()) {
+                generator.useDefaultPrettyPrinter();
+            }
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("bins");
+            merge(baseBatches, variantBatches, generator);
+
+            // what is still open, as in the exports of a single run
+            base.addOpenActivities();
+            variant.addOpenActivities();
+            int bins = Math.max(base.tileHourAccumulator().binCount(), variant.tileHourAccumulator().binCount());
+            for (int bin = nextBin; bin < bins; bin++) {
+                writeBin(generator, bin);
+            }
+            generator.writeEndObject();
+            writeSummary(generator);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing " + outputPath + " failed", e);
+        } finally {
+            base.close();
+            variant.close();
+        }
+        System.out.println(String.format("Compared %,d base and %,d variant events in %.1f s: %,d tile/bins, "
+                + "%,d changed, %.1f person hours more in the variant", baseMetrics.eventCount(),
+                variantMetrics.eventCount(), (System.nanoTime() - start) / 1e9, tileBins, changed,
+                (variantTotal - baseTotal) * binWidth / 3600));
+        if (base.tileHourAccumulator().lateSegments() > 0 || variant.tileHourAccumulator().lateSegments() > 0) {
+            System.out.println("Warning: " + base.tileHourAccumulator().lateSegments() + " base and "
+                    + variant.tileHourAccumulator().lateSegments() + " variant segments reached into bins that were "
+                    + "already compared, increase maxOpenSegment to include them");
+        }
+    }
+
+    // Hands the events of both files to their handlers in time order, the base first at equal times, and writes
+    // every bin as soon as the merged clock has passed it far enough.
+    private void merge(PipelinedEventsReader.Batches baseBatches, PipelinedEventsReader.Batches variantBatches,
+            JsonGenerator generator) throws IOException {
+        Event[] baseBatch = baseBatches.next();
+        Event[] variantBatch = variantBatches.next();
+        int baseNext = 0;
+        int variantNext = 0;
+        while (baseBatch != null || variantBatch != null) {
+            Event event;
+            if (variantBatch == null
+                    || (baseBatch != null && baseBatch[baseNext].getTime() <= variantBatch[variantNext].getTime())) {
+                event = baseBatch[baseNext++];
+                ShardedEventHandler.dispatch(baseTarget, event);
+                if (baseNext == baseBatch.length) {
+                    baseBatch = baseBatches.next();
+                    baseNext = 0;
+                }
+            } else {
+                event = variantBatch[variantNext++];
+                ShardedEventHandler.dispatch(variantTarget, event);
+                if (variantNext == variantBatch.length) {
+                    variantBatch = variantBatches.next();
+                    variantNext = 0;
+                }
+            }
+            // both files are at or past this time, so their handlers saw everything before it
+            while (event.getTime() - maxOpenSegment >= (nextBin + 1) * (double) binWidth) {
+                base.completeBin(nextBin);
+                variant.completeBin(nextBin);
+                writeBin(generator, nextBin);
+                base.tileHourAccumulator().free(nextBin + 1);
+                variant.tileHourAccumulator().free(nextBin + 1);
+                nextBin++;
+            }
+        }
+    }
+
+    // Walks the tiles of both aggregates in x, y order at once, so tiles of either scenario come out sorted.
+    private void writeBin(JsonGenerator generator, int bin) throws IOException {
+        TileHourAccumulator baseTiles = base.tileHourAccumulator();
+        TileHourAccumulator variantTiles = variant.tileHourAccumulator();
+        int[] baseOrder = baseTiles.sortedTiles();
+        int[] variantOrder = variantTiles.sortedTiles();
+        int i = 0;
+        int j = 0;
+        boolean started = false;
+        while (i < baseOrder.length || j < variantOrder.length) {
+            int order = i == baseOrder.length ? 1 : j == variantOrder.length ? -1
+                    : compare(baseTiles, baseOrder[i], variantTiles, variantOrder[j]);
+            int baseTile = order <= 0 ? baseOrder[i++] : -1;
+            int variantTile = order >= 0 ? variantOrder[j++] : -1;
+            boolean inBase = baseTile >= 0 && bin < baseTiles.binCount() && baseTiles.isTouched(baseTile, bin);
+            boolean inVariant = variantTile >= 0 && bin < variantTiles.binCount()
+                    && variantTiles.isTouched(variantTile, bin);
+            if (!inBase && !inVariant) {
+                continue;
+            }
+            double basePopulation = inBase ? baseTiles.population(baseTile, bin) : 0;
+            double variantPopulation = inVariant ? variantTiles.population(variantTile, bin) : 0;
+            String tile = inBase ? baseTiles.tileX(baseTile) + "," + baseTiles.tileY(baseTile)
+                    : variantTiles.tileX(variantTile) + "," + variantTiles.tileY(variantTile);
+            if (!started) {
+                generator.writeObjectFieldStart(String.valueOf(bin));
+                started = true;
+            }
+            generator.writeObjectFieldStart(tile);
+            generator.writeNumberField("base", basePopulation);
+            generator.writeNumberField("variant", variantPopulation);
+            generator.writeNumberField("delta", variantPopulation - basePopulation);
+            generator.writeEndObject();
+            count(tile, bin, inBase, inVariant, basePopulation, variantPopulation);
+        }
+        if (started) {
+            generator.writeEndObject();
+        }
+    }
+
+    private static int compare(TileHourAccumulator a, int tileA, TileHourAccumulator b, int tileB) {
+        return a.tileX(tileA) != b.tileX(tileB) ? Integer.compare(a.tileX(tileA), b.tileX(tileB))
+                : Integer.compare(a.tileY(tileA), b.tileY(tileB));
+    }
+
+    private void count(String tile, int bin, boolean inBase, boolean inVariant, double basePopulation,
+            double variantPopulation) {
+        double delta = variantPopulation - basePopulation;
+        tileBins++;
+        if (!inVariant) {
+            onlyBase++;
+        } else if (!inBase) {
+            onlyVariant++;
+        }
+        if (delta != 0) {
+            changed++;
+        }
+        baseTotal += basePopulation;
+        variantTotal += variantPopulation;
+        absoluteDeltas += Math.abs(delta);
+        squaredDeltas += delta * delta;
+        if (delta > largestIncrease) {
+            largestIncrease = delta;
+            largestIncreaseTile = tile;
+            largestIncreaseBin = bin;
+        }
+        if (delta < largestDecrease) {
+            largestDecrease = delta;
+            largestDecreaseTile = tile;
+            largestDecreaseBin = bin;
+        }
+    }
+
+    // Person hours are the populations times the bin width; mean and root mean square are over the tile/bins listed.
+    private void writeSummary(JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart("summary");
+        generator.writeNumberField("binWidth", binWidth);
+        generator.writeNumberField("tileSize", config.getTileSize());
+        generator.writeNumberField("sampleRate", config.getSampleRate());
+        generator.writeObjectFieldStart("events");
+        generator.writeNumberField("base", baseMetrics.eventCount());
+        generator.writeNumberField("variant", variantMetrics.eventCount());
+        generator.writeEndObject();
+        generator.writeNumberField("tileBins", tileBins);
+        generator.writeNumberField("onlyBase", onlyBase);
+        generator.writeNumberField("onlyVariant", onlyVariant);
+        generator.writeNumberField("changed", changed);
+        generator.writeObjectFieldStart("personHours");
+        generator.writeNumberField("base", baseTotal * binWidth / 3600);
+        generator.writeNumberField("variant", variantTotal * binWidth / 3600);
+        generator.writeNumberField("delta", (variantTotal - baseTotal) * binWidth / 3600);
+        generator.writeEndObject();
+        generator.writeNumberField("meanAbsoluteDelta", tileBins > 0 ? absoluteDeltas / tileBins : 0);
+        generator.writeNumberField("rootMeanSquareDelta", tileBins > 0 ? Math.sqrt(squaredDeltas / tileBins) : 0);
+        writeExtreme(generator, "largestIncrease", largestIncreaseTile, largestIncreaseBin, largestIncrease);
+        writeExtreme(generator, "largestDecrease", largestDecreaseTile, largestDecreaseBin, largestDecrease);
+        generator.writeObjectFieldStart("lateSegments");
+        generator.writeNumberField("base", base.tileHourAccumulator().lateSegments());
+        generator.writeNumberField("variant", variant.tileHourAccumulator().lateSegments());
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static void writeExtreme(JsonGenerator generator, String name, String tile, int bin, double delta)
+            throws IOException {
+        if (tile == null) {
+            generator.writeNullField(name);
+            return;
+        }
+        generator.writeObjectFieldStart(name);
+        generator.writeStringField("tile", tile);
+        generator.writeNumberField("bin", bin);
+        generator.writeNumberField("delta", delta);
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,418 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+// In-memory index over the tile segments of all persons, built in parallel once the events are read.
+// Segments are copied out of the store into primitive arrays grouped by person in store order (the trajectories),
+// and every tile gets the segments in it as a range sorted by start time. Segments are cut into pieces at every full
+// hour for the tiles, so a tile query only looks at the pieces starting between the hour of t0 and t1, found by
+// binary search, however long the activities in the tile are.
+// Segments count for a time range if they touch it; times are in seconds like in the store.
+public class SegmentQueryIndex {
+
+    // segments of one person or of a query result
+    public static final class Segments {
+        private final int[] tileX;
+        private final int[] tileY;
+        private final int[] start;
+        private final int[] end;
+        private final int from;
+        private final int to;
+
+        private Segments(int[] tileX, int[] tileY, int[] start, int[] end, int from, int to) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.start = start;
+            this.end = end;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() {
+            return to - from;
+        }
+
+        public int tileX(int i) {
+            return tileX[from + i];
+        }
+
+        public int tileY(int i) {
+            return tileY[from + i];
+        }
+
+        public int start(int i) {
+            return start[from + i];
+        }
+
+        public int end(int i) {
+            return end[from + i];
+        }
+    }
+
+    // one of the busiest tiles of a time range
+    public static final class TileLoad {
+        private final int tileX;
+        private final int tileY;
+        private final long seconds;
+
+        private TileLoad(int tileX, int tileY, long seconds) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.seconds = seconds;
+        }
+
+        public int tileX() {
+            return tileX;
+        }
+
+        public int tileY() {
+            return tileY;
+        }
+
+        // person seconds spent in the tile during the range
+        public long seconds() {
+            return seconds;
+        }
+    }
+
+    private static final int BLOCK = 4096;
+    // tile segments are cut at multiples of this many seconds
+    private static final int PIECE = 3600;
+
+    // segment arrays, person by person
+    private final int[] person;
+    private final int[] tileX;
+    private final int[] tileY;
+    private final int[] start;
+    private final int[] end;
+    // person index -> first segment, personOffsets[index + 1] is the end
+    private final int[] personOffsets;
+
+    // distinct tiles as x << 32 | y, sorted
+    private final long[] tiles;
+    // tile -> first piece in tileSegments, tileOffsets[tile + 1] is the end
+    private final int[] tileOffsets;
+    // pieces of the segments of each tile sorted by start time: the segment, and the piece's start and end
+    private final int[] tileSegments;
+    private final int[] tileStarts;
+    private final int[] tileEnds;
+    // id -> person with segments, made on the first lookup by id
+    private Map<String, Id<Person>> personsByName = null;
+
+    // Indexes the store plus the extra segments given as rows of person index, tileX, tileY, start and end, e.g.
+    // open activities that are not in the store. The store is only read, on the given number of threads.
+    SegmentQueryIndex(SegmentStore store, LinkTileIndex tileIndex, int[][] extra, int threads) {
+        int persons = Id.getNumberOfIds(Person.class);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // count the segments of every person, then copy them into their ranges
+            int[] counts = new int[persons + 1];
+            int[] extraCounts = new int[persons + 1];
+            for (int i = 0; i < extra[0].length; i++) {
+                extraCounts[extra[0][i]]++;
+            }
+            run(executor, blocks(persons), block -> {
+                SegmentStore.Cursor cursor = store.cursor(tileIndex);
+                for (int p = block * BLOCK; p < Math.min(persons, (block + 1) * BLOCK); p++) {
+                    cursor.reset(p);
+                    int count = extraCounts[p];
+                    while (cursor.next()) {
+                        count++;
+                    }
+                    counts[p] = count;
+                }
+            });
+            personOffsets = new int[persons + 1];
+            long total = 0;
+            for (int p = 0; p < persons; p++) {
+                total += counts[p];
+                if (total > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many segments for the query index: " + total);
+                }
+                personOffsets[p + 1] = (int) total;
+            }
+            int size = (int) total;
+            person = new int[size];
+            tileX = new int[size];
+            tileY = new int[size];
+            start = new int[size];
+            end = new int[size];
+            run(executor, blocks(persons), block -> {
+                SegmentStore.Cursor cursor = store.cursor(tileIndex);
+                for (int p = block * BLOCK; p < Math.min(persons, (block + 1) * BLOCK); p++) {
+                    int segment = personOffsets[p];
+                    cursor.reset(p);
+                    while (cursor.next()) {
+                        person[segment] = p;
+                        tileX[segment] = cursor.tileX();
+                        tileY[segment] = cursor.tileY();
+                        start[segment] = cursor.start();
+                        end[segment] = cursor.end();
+                        segment++;
+                    }
+                }
+            });
+            // extra segments go behind the stored ones of their person, in the given order
+            int[] next = new int[persons];
+            for (int i = 0; i < extra[0].length; i++) {
+                int p = extra[0][i];
+                int segment = personOffsets[p + 1] - extraCounts[p] + next[p]++;
+                person[segment] = p;
+                tileX[segment] = extra[1][i];
+                tileY[segment] = extra[2][i];
+                start[segment] = extra[3][i];
+                end[segment] = extra[4][i];
+            }
+
+            // distinct tiles, and every segment's tile by binary search
+            long[] keys = new long[size];
+            run(executor, blocks(size), block -> {
+                for (int i = block * BLOCK; i < Math.min(size, (block + 1) * BLOCK); i++) {
+                    keys[i] = key(tileX[i], tileY[i]);
+                }
+            });
+            Arrays.parallelSort(keys);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || keys[i] != keys[i - 1]) {
+                    keys[unique++] = keys[i];
+                }
+            }
+            int distinct = unique;
+            tiles = Arrays.copyOf(keys, distinct);
+            int[] segmentTiles = new int[size];
+            run(executor, blocks(size), block -> {
+                for (int i = block * BLOCK; i < Math.min(size, (block + 1) * BLOCK); i++) {
+                    segmentTiles[i] = Arrays.binarySearch(tiles, key(tileX[i], tileY[i]));
+                }
+            });
+
+            // cut the segments into pieces, group the pieces by tile, then sort every tile by start time
+            tileOffsets = new int[distinct + 1];
+            long pieces = 0;
+            for (int i = 0; i < size; i++) {
+                int count = pieces(start[i], end[i]);
+                tileOffsets[segmentTiles[i] + 1] += count;
+                pieces += count;
+            }
+            if (pieces > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many segment pieces for the query index: " + pieces);
+            }
+            for (int tile = 0; tile < distinct; tile++) {
+                tileOffsets[tile + 1] += tileOffsets[tile];
+            }
+            int[] fill = Arrays.copyOf(tileOffsets, distinct);
+            tileSegments = new int[(int) pieces];
+            tileStarts = new int[(int) pieces];
+            tileEnds = new int[(int) pieces];
+            for (int i = 0; i < size; i++) {
+                int tile = segmentTiles[i];
+                long pieceStart = start[i];
+                while (true) {
+                    long pieceEnd = Math.min(end[i], Math.floorDiv(pieceStart, PIECE) * PIECE + PIECE);
+                    int piece = fill[tile]++;
+                    tileSegments[piece] = i;
+                    tileStarts[piece] = (int) pieceStart;
+                    tileEnds[piece] = (int) pieceEnd;
+                    if (pieceEnd == end[i]) {
+                        break;
+                    }
+                    pieceStart = pieceEnd;
+                }
+            }
+            run(executor, blocks(distinct), block -> {
+                long[] sort = new long[0];
+                int[] segments = new int[0];
+                int[] ends = new int[0];
+                for (int tile = block * BLOCK; tile < Math.min(distinct, (block + 1) * BLOCK); tile++) {
+                    int from = tileOffsets[tile];
+                    int to = tileOffsets[tile + 1];
+                    if (sort.length < to - from) {
+                        sort = new long[to - from];
+                        segments = new int[to - from];
+                        ends = new int[to - from];
+                    }
+                    for (int i = from; i < to; i++) {
+                        sort[i - from] = ((long) tileStarts[i] << 32) | (i - from);
+                        segments[i - from] = tileSegments[i];
+                        ends[i - from] = tileEnds[i];
+                    }
+                    Arrays.sort(sort, 0, to - from);
+                    for (int i = from; i < to; i++) {
+                        int position = (int) sort[i - from];
+                        tileSegments[i] = segments[position];
+                        tileStarts[i] = (int) (sort[i - from] >> 32);
+                        tileEnds[i] = ends[position];
+                    }
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // A segment ending on a full hour has its last piece in the hour before, a segment of no length has one piece.
+    private static int pieces(int start, int end) {
+        long firstPiece = Math.floorDiv((long) start, PIECE);
+        long lastPiece = Math.max(firstPiece, Math.floorDiv((long) end - 1, PIECE));
+        return (int) (lastPiece - firstPiece + 1);
+    }
+
+    // start of the piece holding time, or of the one before if time is a full hour, as a piece may end there
+    private static int pieceStartBefore(int time) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.floorDiv((long) time - 1, PIECE) * PIECE);
+    }
+
+    private static int blocks(int size) {
+        return (size + BLOCK - 1) / BLOCK;
+    }
+
+    private static void run(ExecutorService executor, int tasks, IntConsumer task) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            int block = i;
+            futures.add(executor.submit(() -> task.accept(block)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public int segmentCount() {
+        return person.length;
+    }
+
+    public int tileCount() {
+        return tiles.length;
+    }
+
+    // Persons with a segment in the tile touching [t0, t1], in Id index order.
+    public List<Id<Person>> persons(int x, int y, int t0, int t1) {
+        checkRange(t0, t1);
+        int tile = Arrays.binarySearch(tiles, key(x, y));
+        List<Id<Person>> result = new ArrayList<>();
+        if (tile < 0) {
+            return result;
+        }
+        int from = firstStartingFrom(tile, pieceStartBefore(t0));
+        int to = firstStartingFrom(tile, t1 == Integer.MAX_VALUE ? t1 : t1 + 1);
+        int[] found = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (tileEnds[i] >= t0) {
+                found[count++] = person[tileSegments[i]];
+            }
+        }
+        Arrays.sort(found, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || found[i] != found[i - 1]) {
+                result.add(Id.get(found[i], Person.class));
+            }
+        }
+        return result;
+    }
+
+    private static void checkRange(int t0, int t1) {
+        if (t1 < t0) {
+            throw new IllegalArgumentException("Time range ends before it starts: " + t0 + " to " + t1);
+        }
+    }
+
+    // first piece of the tile with a start of at least time
+    private int firstStartingFrom(int tile, int time) {
+        int low = tileOffsets[tile];
+        int high = tileOffsets[tile + 1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tileStarts[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // The tile segments of the person in the order they were recorded; empty for unknown persons.
+    public Segments trajectory(Id<Person> personId) {
+        int index = personId.index();
+        if (index + 1 >= personOffsets.length) {
+            return new Segments(tileX, tileY, start, end, 0, 0);
+        }
+        return new Segments(tileX, tileY, start, end, personOffsets[index], personOffsets[index + 1]);
+    }
+
+    // The person with the given id, or null if it has no segments. Unlike Id.createPersonId, this does not add
+    // unknown ids to MATSim's id registry, which lives as long as the process.
+    public synchronized Id<Person> person(String id) {
+        if (personsByName == null) {
+            personsByName = new HashMap<>();
+            for (int p = 0; p < personOffsets.length - 1; p++) {
+                if (personOffsets[p + 1] > personOffsets[p]) {
+                    Id<Person> personId = Id.get(p, Person.class);
+                    personsByName.put(personId.toString(), personId);
+                }
+            }
+        }
+        return personsByName.get(id);
+    }
+
+    // The k tiles with the most person seconds in [t0, t1), busiest first; ties in tile order.
+    public List<TileLoad> busiestTiles(int t0, int t1, int k) {
+        checkRange(t0, t1);
+        PriorityQueue<TileLoad> top = new PriorityQueue<>(
+                (a, b) -> a.seconds != b.seconds ? Long.compare(a.seconds, b.seconds)
+                        : Long.compare(key(b.tileX, b.tileY), key(a.tileX, a.tileY)));
+        for (int tile = 0; tile < tiles.length; tile++) {
+            // the pieces of a segment do not overlap, so their seconds add up to the segment's
+            int from = firstStartingFrom(tile, pieceStartBefore(t0));
+            int to = firstStartingFrom(tile, t1);
+            long seconds = 0;
+            for (int i = from; i < to; i++) {
+                seconds += Math.max(0, Math.min(tileEnds[i], t1) - Math.max(tileStarts[i], t0));
+            }
+            if (seconds == 0) {
+                continue;
+            }
+            TileLoad load = new TileLoad((int) (tiles[tile] >> 32), (int) tiles[tile], seconds);
+            if (top.size() < k) {
+                top.add(load);
+            } else if (k > 0 && top.comparator().compare(load, top.peek()) > 0) {
+                top.poll();
+                top.add(load);
+            }
+        }
+        List<TileLoad> result = new ArrayList<>(top);
+        result.sort(top.comparator().reversed());
+        return result;
+    }
+
+    // The busiest tiles of an hour of the day, hour 0 being [0, 3600).
+    public List<TileLoad> busiestTiles(int hour, int k) {
+        return busiestTiles(hour * 3600, (hour + 1) * 3600, k);
+    }
+}
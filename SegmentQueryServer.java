@@ -0,0 +1,162 @@
+package org.matsim.project;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Local HTTP access to a SegmentQueryIndex, answering with JSON (times in seconds, tiles by their x and y):
+//   GET /persons?x=1200&y=3400&from=28800&to=32400   persons in the tile during the range
+//   GET /trajectory?person=1234                       tile segments of the person
+//   GET /busiest?hour=8&k=10                          busiest tiles of the hour (or from=..&to=..)
+// Only listens on the loopback address.
+public class SegmentQueryServer {
+
+    private final SegmentQueryIndex index;
+    private final HttpServer server;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    public SegmentQueryServer(SegmentQueryIndex index, int port) throws IOException {
+        this.index = index;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/persons", exchange -> answer(exchange, this::persons));
+        server.createContext("/trajectory", exchange -> answer(exchange, this::trajectory));
+        server.createContext("/busiest", exchange -> answer(exchange, this::busiest));
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Segment queries on http://localhost:" + port() + "/");
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private interface Query {
+        void write(Map<String, String> parameters, JsonGenerator generator) throws IOException;
+    }
+
+    private void answer(HttpExchange exchange, Query query) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = 200;
+        try (JsonGenerator generator = jsonFactory.createGenerator(body, JsonEncoding.UTF8)) {
+            query.write(parameters(exchange.getRequestURI().getRawQuery()), generator);
+        } catch (RuntimeException e) {
+            // bad parameters are the client's fault, anything else is answered too instead of dropping the request
+            status = e instanceof IllegalArgumentException ? 400 : 500;
+            body.reset();
+            try (JsonGenerator generator = jsonFactory.createGenerator(body, JsonEncoding.UTF8)) {
+                generator.writeStartObject();
+                generator.writeStringField("error", e.getMessage() != null ? e.getMessage() : e.toString());
+                generator.writeEndObject();
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    private static Map<String, String> parameters(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + value);
+        }
+    }
+
+    private void persons(Map<String, String> parameters, JsonGenerator generator) throws IOException {
+        List<Id<Person>> persons = index.persons(intParameter(parameters, "x"), intParameter(parameters, "y"),
+                intParameter(parameters, "from"), intParameter(parameters, "to"));
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("persons");
+        for (Id<Person> personId : persons) {
+            generator.writeString(personId.toString());
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private void trajectory(Map<String, String> parameters, JsonGenerator generator) throws IOException {
+        String person = parameters.get("person");
+        if (person == null) {
+            throw new IllegalArgumentException("Missing parameter person");
+        }
+        // unknown persons get no segments
+        Id<Person> personId = index.person(person);
+        SegmentQueryIndex.Segments segments = personId == null ? null : index.trajectory(personId);
+        generator.writeStartObject();
+        generator.writeStringField("person", person);
+        generator.writeArrayFieldStart("segments");
+        for (int i = 0; segments != null && i < segments.size(); i++) {
+            generator.writeStartObject();
+            generator.writeNumberField("x", segments.tileX(i));
+            generator.writeNumberField("y", segments.tileY(i));
+            generator.writeNumberField("start", segments.start(i));
+            generator.writeNumberField("end", segments.end(i));
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private void busiest(Map<String, String> parameters, JsonGenerator generator) throws IOException {
+        int k = parameters.containsKey("k") ? intParameter(parameters, "k") : 10;
+        List<SegmentQueryIndex.TileLoad> tiles;
+        if (parameters.containsKey("hour")) {
+            tiles = index.busiestTiles(intParameter(parameters, "hour"), k);
+        } else {
+            tiles = index.busiestTiles(intParameter(parameters, "from"), intParameter(parameters, "to"), k);
+        }
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("tiles");
+        for (SegmentQueryIndex.TileLoad tile : tiles) {
+            generator.writeStartObject();
+            generator.writeNumberField("x", tile.tileX());
+            generator.writeNumberField("y", tile.tileY());
+            generator.writeNumberField("seconds", tile.seconds());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,57 @@
+package org.matsim.project;
+
+import java.io.IOException;
+
+// Receives the tile segments of all persons from one traversal of the segment store during an export, on a thread
+// of its own. Persons come in Id index order, the segments of a person in the order they were recorded, the open
+// last activities included. Registered with TrackerExport.sink.
+public interface SegmentSink {
+
+    void accept(Batch batch) throws IOException;
+
+    // called once after the last batch, also to release the sink's resources
+    void finish() throws IOException;
+
+    // A run of consecutive segments, shared by all sinks and never changed once handed out.
+    final class Batch {
+        final int[] person;
+        final int[] tileX;
+        final int[] tileY;
+        final int[] start;
+        final int[] end;
+        int size = 0;
+
+        Batch(int capacity) {
+            person = new int[capacity];
+            tileX = new int[capacity];
+            tileY = new int[capacity];
+            start = new int[capacity];
+            end = new int[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Id index of the person, see Id.get(index, Person.class)
+        public int person(int i) {
+            return person[i];
+        }
+
+        public int tileX(int i) {
+            return tileX[i];
+        }
+
+        public int tileY(int i) {
+            return tileY[i];
+        }
+
+        public int start(int i) {
+            return start[i];
+        }
+
+        public int end(int i) {
+            return end[i];
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package org.matsim.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only store of person tile segments outside the Java heap.
+// Records live in fixed size chunks, either direct buffers or regions of a memory-mapped temp file,
+// and the records of one person are chained in insertion order through a "next" pointer.
+// A record is either one tile segment or a reference to a whole link traversal, which a Cursor expands into
+// the link's tile segments when the store is read. Link traversals thus cost one record per person, not per tile.
+class SegmentStore {
+
+    // tile record: person, tileX, tileY, start, end (int) + next record (long)
+    // link record: ~person, link Id index, interval (int), time (double) + next record (long)
+    private static final int RECORD_BYTES = 28;
+    private static final int CHUNK_SHIFT = 18;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+    private static final long NONE = -1;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final List<SegmentStore> adopted = new ArrayList<>();
+    private final FileChannel channel;
+    private final File file;
+
+    // next free record; records are addressed as chunk << CHUNK_SHIFT | position in chunk
+    private long nextRecord = 0;
+    private long size = 0;
+
+    // first and last record of every person, indexed by Id<Person>.index()
+    private long[] head = new long[0];
+    private long[] tail = new long[0];
+
+    // Keeps the chunks in direct buffers.
+    public SegmentStore() {
+        this.channel = null;
+        this.file = null;
+    }
+
+    // Keeps the chunks in a memory-mapped temp file in the given directory, so the store is only bounded by disk space.
+    public SegmentStore(File directory) {
+        try {
+            this.file = File.createTempFile("agent_tracker_segments", ".bin", directory);
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            file.deleteOnExit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Records are numbered in append order from 0 up to this one, unless other stores were adopted.
+    public long nextRecord() {
+        return nextRecord;
+    }
+
+    public void append(int person, int tileX, int tileY, int start, int end) {
+        long record = allocateRecord(person);
+        ByteBuffer buffer = buffer(record);
+        int offset = offset(record);
+        buffer.putInt(offset, person);
+        buffer.putInt(offset + 4, tileX);
+        buffer.putInt(offset + 8, tileY);
+        buffer.putInt(offset + 12, start);
+        buffer.putInt(offset + 16, end);
+    }
+
+    // A traversal of the link with the given Id index, split over its tiles as LinkTileIndex.Traversal does.
+    public void appendLink(int person, int linkSlot, double time, int interval) {
+        long record = allocateRecord(person);
+        ByteBuffer buffer = buffer(record);
+        int offset = offset(record);
+        buffer.putInt(offset, ~person);
+        buffer.putInt(offset + 4, linkSlot);
+        buffer.putInt(offset + 8, interval);
+        buffer.putDouble(offset + 12, time);
+    }
+
+    private long allocateRecord(int person) {
+        int chunk = (int) (nextRecord >>> CHUNK_SHIFT);
+        if (chunk == chunks.size()) {
+            chunks.add(allocateChunk(chunk));
+        }
+        long record = nextRecord++;
+        size++;
+        buffer(record).putLong(offset(record) + 20, NONE);
+
+        ensurePerson(person);
+        if (head[person] == NONE) {
+            head[person] = record;
+        } else {
+            setNext(tail[person], record);
+        }
+        tail[person] = record;
+        return record;
+    }
+
+    private ByteBuffer allocateChunk(int chunk) {
+        long bytes = (long) CHUNK_RECORDS * RECORD_BYTES;
+        if (channel == null) {
+            return ByteBuffer.allocateDirect((int) bytes);
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, chunk * bytes, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void ensurePerson(int person) {
+        if (person >= head.length) {
+            int length = Math.max(person + 1, head.length * 2);
+            int from = head.length;
+            head = Arrays.copyOf(head, length);
+            tail = Arrays.copyOf(tail, length);
+            Arrays.fill(head, from, length, NONE);
+            Arrays.fill(tail, from, length, NONE);
+        }
+    }
+
+    // First record of a person, or -1 if the person has no segments.
+    public long first(int person) {
+        return person < head.length ? head[person] : NONE;
+    }
+
+    // Record after the given one of the same person, or -1.
+    public long next(long record) {
+        return buffer(record).getLong(offset(record) + 20);
+    }
+
+    private void setNext(long record, long next) {
+        buffer(record).putLong(offset(record) + 20, next);
+    }
+
+    public int person(long record) {
+        int person = buffer(record).getInt(offset(record));
+        return person < 0 ? ~person : person;
+    }
+
+    public boolean isLink(long record) {
+        return buffer(record).getInt(offset(record)) < 0;
+    }
+
+    // tileX of a tile record, the link Id index of a link record
+    public int tileX(long record) {
+        return buffer(record).getInt(offset(record) + 4);
+    }
+
+    // tileY of a tile record, the interval of a link record
+    public int tileY(long record) {
+        return buffer(record).getInt(offset(record) + 8);
+    }
+
+    public int start(long record) {
+        return buffer(record).getInt(offset(record) + 12);
+    }
+
+    public int end(long record) {
+        return buffer(record).getInt(offset(record) + 16);
+    }
+
+    public double linkTime(long record) {
+        return buffer(record).getDouble(offset(record) + 12);
+    }
+
+    // Cursor over the tile segments of one person with link records expanded; one per reading thread.
+    public Cursor cursor(LinkTileIndex tileIndex) {
+        return new Cursor(tileIndex.traversal());
+    }
+
+    class Cursor {
+        private final LinkTileIndex.Traversal traversal;
+        private long record = NONE;
+        private boolean inLink = false;
+        private int tileX;
+        private int tileY;
+        private int start;
+        private int end;
+
+        private Cursor(LinkTileIndex.Traversal traversal) {
+            this.traversal = traversal;
+        }
+
+        public void reset(int person) {
+            record = first(person);
+            inLink = false;
+        }
+
+        public boolean next() {
+            while (true) {
+                if (inLink) {
+                    if (traversal.next()) {
+                        tileX = traversal.tileX();
+                        tileY = traversal.tileY();
+                        start = traversal.start();
+                        end = traversal.end();
+                        return true;
+                    }
+                    inLink = false;
+                    record = SegmentStore.this.next(record);
+                }
+                if (record == NONE) {
+                    return false;
+                }
+                if (isLink(record)) {
+                    traversal.reset(SegmentStore.this.tileX(record), linkTime(record), SegmentStore.this.tileY(record));
+                    inLink = true;
+                    continue;
+                }
+                tileX = SegmentStore.this.tileX(record);
+                tileY = SegmentStore.this.tileY(record);
+                start = SegmentStore.this.start(record);
+                end = SegmentStore.this.end(record);
+                record = SegmentStore.this.next(record);
+                return true;
+            }
+        }
+
+        public int tileX() {
+            return tileX;
+        }
+
+        public int tileY() {
+            return tileY;
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+    }
+
+    private ByteBuffer buffer(long record) {
+        return chunks.get((int) (record >>> CHUNK_SHIFT));
+    }
+
+    private static int offset(long record) {
+        return ((int) record & CHUNK_MASK) * RECORD_BYTES;
+    }
+
+    // Takes over the chunks of another store, e.g. of a parallel shard. Its records move behind ours by whole chunks,
+    // so only their next pointers are shifted and nothing is copied. Records of the same person are appended after ours.
+    public void adopt(SegmentStore other) {
+        long base = (long) chunks.size() << CHUNK_SHIFT;
+        for (int person = 0; person < other.head.length; person++) {
+            long record = other.head[person];
+            if (record == NONE) {
+                continue;
+            }
+            while (record != NONE) {
+                long next = other.next(record);
+                if (next != NONE) {
+                    other.setNext(record, next + base);
+                }
+                record = next;
+            }
+            ensurePerson(person);
+            if (head[person] == NONE) {
+                head[person] = other.head[person] + base;
+            } else {
+                // the old tail is still addressed in our own chunks, which do not move
+                setNext(tail[person], other.head[person] + base);
+            }
+            tail[person] = other.tail[person] + base;
+        }
+        chunks.addAll(other.chunks);
+        size += other.size;
+        // continue on a fresh chunk behind the adopted ones
+        nextRecord = (long) chunks.size() << CHUNK_SHIFT;
+
+        other.chunks.clear();
+        other.head = new long[0];
+        other.tail = new long[0];
+        other.size = 0;
+        adopted.add(other);
+    }
+
+    // Drops the chunks; direct memory is returned once the buffers are collected, the temp file is deleted.
+    public void close() {
+        chunks.clear();
+        for (SegmentStore store : adopted) {
+            store.close();
+        }
+        adopted.clear();
+        head = new long[0];
+        tail = new long[0];
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file.delete();
+        }
+    }
+}
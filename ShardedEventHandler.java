@@ -0,0 +1,308 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+// Spreads the tracker's events over several AgentTrackerEventHandler shards, each running on its own thread.
+// Every person belongs to exactly one shard and all of its events go there. Link events are about vehicles,
+// which can carry persons of any shard: the dispatching thread follows who is in which vehicle and sends them only
+// to the shards with persons in the vehicle, and none at all for empty vehicles.
+// Each shard therefore sees its persons' events in file order and produces what the serial handler would for them.
+class ShardedEventHandler implements TrackerEventHandler {
+
+    public static final int MAX_SHARDS = 64;
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES = 64;
+    private static final Event[] END = new Event[0];
+
+    private final Shard[] shards;
+    // who is in which vehicle, on the dispatching thread
+    private final VehicleOccupancy vehicleOccupancy = new VehicleOccupancy();
+    // vehicle index -> bit i set if persons of shard i are in the vehicle
+    private long[] vehicleShards = new long[0];
+
+    public ShardedEventHandler(int shardCount, Supplier<AgentTrackerEventHandler> handlerFactory) {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("shards must be between 1 and " + MAX_SHARDS + ", got " + shardCount);
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(handlerFactory.get(), i);
+            shards[i].thread.start();
+        }
+    }
+
+    private static class Shard implements Runnable {
+        final AgentTrackerEventHandler handler;
+        final BlockingQueue<Event[]> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        final Thread thread;
+        Event[] batch = new Event[BATCH_SIZE];
+        int batchSize = 0;
+        volatile Throwable failure;
+        // time spent handling events, read once the thread is joined
+        long busyNanos = 0;
+
+        Shard(AgentTrackerEventHandler handler, int index) {
+            this.handler = handler;
+            this.thread = new Thread(this, "agent-tracker-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void add(Event event) {
+            batch[batchSize++] = event;
+            if (batchSize == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batchSize == 0) {
+                return;
+            }
+            Event[] full = batchSize == BATCH_SIZE ? batch : Arrays.copyOf(batch, batchSize);
+            put(full);
+            batch = new Event[BATCH_SIZE];
+            batchSize = 0;
+        }
+
+        void put(Event[] events) {
+            if (failure != null) {
+                throw new RuntimeException("Shard " + thread.getName() + " failed", failure);
+            }
+            try {
+                queue.put(events);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Event[] events = queue.take();
+                    if (events == END) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    for (Event event : events) {
+                        dispatch(handler, event);
+                    }
+                    busyNanos += System.nanoTime() - start;
+                }
+            } catch (Throwable t) {
+                failure = t;
+                // keep draining so the reader thread does not block on a full queue
+                while (true) {
+                    try {
+                        if (queue.take() == END) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Calls the handleEvent method for the type of the event; other events are dropped.
+    static void dispatch(TrackerEventHandler handler, Event event) {
+        if (event instanceof LinkEnterEvent) {
+            handler.handleEvent((LinkEnterEvent) event);
+        } else if (event instanceof LinkLeaveEvent) {
+            handler.handleEvent((LinkLeaveEvent) event);
+        } else if (event instanceof PersonEntersVehicleEvent) {
+            handler.handleEvent((PersonEntersVehicleEvent) event);
+        } else if (event instanceof PersonLeavesVehicleEvent) {
+            handler.handleEvent((PersonLeavesVehicleEvent) event);
+        } else if (event instanceof ActivityStartEvent) {
+            handler.handleEvent((ActivityStartEvent) event);
+        } else if (event instanceof ActivityEndEvent) {
+            handler.handleEvent((ActivityEndEvent) event);
+        } else if (event instanceof PersonDepartureEvent) {
+            handler.handleEvent((PersonDepartureEvent) event);
+        } else if (event instanceof PersonArrivalEvent) {
+            handler.handleEvent((PersonArrivalEvent) event);
+        }
+    }
+
+    private int shardIndex(Id<Person> personId) {
+        return personId.index() % shards.length;
+    }
+
+    private Shard shardOf(Id<Person> personId) {
+        return shards[shardIndex(personId)];
+    }
+
+    // Sends a link event to the shards with persons in the vehicle.
+    private void route(Event event, Id<Vehicle> vehicleId) {
+        int vehicle = vehicleId.index();
+        long mask = vehicle < vehicleShards.length ? vehicleShards[vehicle] : 0;
+        while (mask != 0) {
+            shards[Long.numberOfTrailingZeros(mask)].add(event);
+            mask &= mask - 1;
+        }
+    }
+
+    private void board(Id<Vehicle> vehicleId, Id<Person> personId) {
+        vehicleOccupancy.add(vehicleId, personId);
+        int vehicle = vehicleId.index();
+        if (vehicle >= vehicleShards.length) {
+            int length = Math.max(vehicle + 1, Math.max(256, vehicleShards.length * 2));
+            vehicleShards = Arrays.copyOf(vehicleShards, length);
+        }
+        vehicleShards[vehicle] |= 1L << shardIndex(personId);
+    }
+
+    // The shards of the remaining persons, usually few, make up the vehicle's bits again.
+    private void alight(Id<Vehicle> vehicleId, Id<Person> personId) {
+        int before = vehicleOccupancy.count(vehicleId);
+        vehicleOccupancy.remove(vehicleId, personId);
+        int count = vehicleOccupancy.count(vehicleId);
+        if (count == before) {
+            return;
+        }
+        long mask = 0;
+        for (int i = 0; i < count; i++) {
+            mask |= 1L << shardIndex(vehicleOccupancy.occupant(vehicleId, i));
+        }
+        vehicleShards[vehicleId.index()] = mask;
+    }
+
+    // Waits for all shards to drain their queues and merges their results into the given handler.
+    public AgentTrackerEventHandler finish(AgentTrackerEventHandler merged) {
+        for (Shard shard : shards) {
+            shard.flush();
+            shard.put(END);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (shard.failure != null) {
+                throw new RuntimeException("Shard " + shard.thread.getName() + " failed", shard.failure);
+            }
+        }
+        for (Shard shard : shards) {
+            merged.mergeFrom(shard.handler);
+        }
+        return merged;
+    }
+
+    // Time the shards spent handling events, summed; valid after finish.
+    public long handlingNanos() {
+        long nanos = 0;
+        for (Shard shard : shards) {
+            nanos += shard.busyNanos;
+        }
+        return nanos;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public long knownPersons() {
+        long sum = 0;
+        for (Shard shard : shards) {
+            sum += shard.handler.knownPersons();
+        }
+        return sum;
+    }
+
+    @Override
+    public long travellingPersons() {
+        long sum = 0;
+        for (Shard shard : shards) {
+            sum += shard.handler.travellingPersons();
+        }
+        return sum;
+    }
+
+    // a vehicle with persons of several shards counts once per shard
+    @Override
+    public long occupiedVehicles() {
+        long sum = 0;
+        for (Shard shard : shards) {
+            sum += shard.handler.occupiedVehicles();
+        }
+        return sum;
+    }
+
+    @Override
+    public long segmentCount() {
+        long sum = 0;
+        for (Shard shard : shards) {
+            sum += shard.handler.segmentCount();
+        }
+        return sum;
+    }
+
+    @Override
+    public void reset(int iteration) {
+        System.out.println("Resetting...");
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        route(event, event.getVehicleId());
+    }
+
+    @Override
+    public void handleEvent(LinkLeaveEvent event) {
+        route(event, event.getVehicleId());
+    }
+
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        board(event.getVehicleId(), event.getPersonId());
+        shardOf(event.getPersonId()).add(event);
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        alight(event.getVehicleId(), event.getPersonId());
+        shardOf(event.getPersonId()).add(event);
+    }
+
+    @Override
+    public void handleEvent(ActivityStartEvent event) {
+        shardOf(event.getPersonId()).add(event);
+    }
+
+    @Override
+    public void handleEvent(ActivityEndEvent event) {
+        shardOf(event.getPersonId()).add(event);
+    }
+
+    @Override
+    public void handleEvent(PersonDepartureEvent event) {
+        shardOf(event.getPersonId()).add(event);
+    }
+
+    @Override
+    public void handleEvent(PersonArrivalEvent event) {
+        shardOf(event.getPersonId()).add(event);
+    }
+}
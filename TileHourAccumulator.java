@@ -0,0 +1,363 @@
+package org.matsim.project;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Occupied seconds per tile and time bin (an hour by default), kept in primitive arrays.
+// Memory grows with tiles x bins only, no matter how many persons or segments are added.
+// Bins that were written out can be freed; later additions to them are only counted as late.
+// Filled from a sample of the persons, populations are scaled up by the inverse sample rate and every tile/bin also
+// sums the squared seconds of its segments for the standard error of that estimate.
+class TileHourAccumulator {
+
+    private final int binWidth;
+    // fraction of the persons the segments come from, 1 for all of them
+    private final double sampleRate;
+
+    // open addressing tile key -> tile id + 1 (0 marks a free slot)
+    private long[] keys = new long[1024];
+    private int[] slots = new int[1024];
+
+    private int tileCount = 0;
+    private int[] tileX = new int[256];
+    private int[] tileY = new int[256];
+
+    // [bin][tile id]; seconds are summed as integers so the totals do not depend on the order segments arrive in
+    private long[][] seconds = new long[0][];
+    // [bin][tile id / 64]; set for every tile/bin a segment touched, even with zero seconds
+    private long[][] touched = new long[0][];
+    // [bin][tile id]; sum of seconds^2 over the segments, only kept for a sample
+    private long[][] squares = new long[0][];
+
+    // bins below this one were freed
+    private int freedBins = 0;
+    private long lateSegments = 0;
+    private long lateSeconds = 0;
+
+    public TileHourAccumulator(int binWidth) {
+        this(binWidth, 1);
+    }
+
+    public TileHourAccumulator(int binWidth, double sampleRate) {
+        this.binWidth = binWidth;
+        this.sampleRate = sampleRate;
+    }
+
+    public int binWidth() {
+        return binWidth;
+    }
+
+    public double sampleRate() {
+        return sampleRate;
+    }
+
+    public boolean isSampled() {
+        return sampleRate < 1;
+    }
+
+    public int tileCount() {
+        return tileCount;
+    }
+
+    public int binCount() {
+        return seconds.length;
+    }
+
+    public int freedBins() {
+        return freedBins;
+    }
+
+    // segments that reached into already freed bins, and the seconds they had there
+    public long lateSegments() {
+        return lateSegments;
+    }
+
+    public long lateSeconds() {
+        return lateSeconds;
+    }
+
+    public int tileX(int tile) {
+        return tileX[tile];
+    }
+
+    public int tileY(int tile) {
+        return tileY[tile];
+    }
+
+    public boolean isTouched(int tile, int bin) {
+        long[] bits = touched[bin];
+        int word = tile >>> 6;
+        return bits != null && word < bits.length && (bits[word] & (1L << tile)) != 0;
+    }
+
+    public long seconds(int tile, int bin) {
+        long[] row = seconds[bin];
+        return row != null && tile < row.length ? row[tile] : 0;
+    }
+
+    // population of a tile in a bin = average number of persons present, estimated for all persons from a sample
+    public double population(int tile, int bin) {
+        if (isSampled()) {
+            return seconds(tile, bin) / (binWidth * sampleRate);
+        }
+        return seconds(tile, bin) / (double) binWidth;
+    }
+
+    // Standard error of the population of a sample, 0 without sampling. Every person is in the sample with
+    // probability p on its own, so the variance of the scaled seconds is estimated by (1 - p) / p^2 times the sum
+    // of the squared seconds of the sampled persons. Segments are counted as persons of their own: exact when a
+    // person passes a tile once per bin, a lower bound when it comes back within the bin.
+    public double standardError(int tile, int bin) {
+        if (!isSampled()) {
+            return 0;
+        }
+        long[] row = squares[bin];
+        long sum = row != null && tile < row.length ? row[tile] : 0;
+        return Math.sqrt((1 - sampleRate) * sum) / (sampleRate * binWidth);
+    }
+
+    // Same split as the JSON export always used: every bin from start / binWidth to end / binWidth is touched.
+    public void add(int x, int y, int start, int end) {
+        add(x, y, start, end, 1);
+    }
+
+    // The same segment for weight persons at once, e.g. the passengers of a vehicle.
+    public void add(int x, int y, int start, int end, int weight) {
+        int tile = tileId(x, y);
+        int startBin = start / binWidth;
+        int endBin = end / binWidth;
+        boolean late = false;
+        for (int bin = startBin; bin <= endBin; bin++) {
+            int startSecond = Math.max(start, bin * binWidth);
+            int endSecond = Math.min(end, (bin + 1) * binWidth);
+            if (bin < freedBins) {
+                lateSeconds += (long) (endSecond - startSecond) * weight;
+                late = true;
+                continue;
+            }
+            long segmentSeconds = endSecond - startSecond;
+            add(tile, bin, segmentSeconds * weight, segmentSeconds * segmentSeconds * weight);
+        }
+        if (late) {
+            lateSegments += weight;
+        }
+    }
+
+    private void add(int tile, int bin, long value, long square) {
+        ensureBin(bin);
+        long[] row = seconds[bin];
+        if (row == null || tile >= row.length) {
+            row = seconds[bin] = grow(row, tileX.length);
+            touched[bin] = grow(touched[bin], (tileX.length + 63) >>> 6);
+            if (isSampled()) {
+                squares[bin] = grow(squares[bin], tileX.length);
+            }
+        }
+        row[tile] += value;
+        touched[bin][tile >>> 6] |= 1L << tile;
+        if (isSampled()) {
+            squares[bin][tile] += square;
+        }
+    }
+
+    private long square(int tile, int bin) {
+        long[] row = squares[bin];
+        return row != null && tile < row.length ? row[tile] : 0;
+    }
+
+    // Drops the totals of all bins below endBin once they were written out.
+    public void free(int endBin) {
+        ensureBin(endBin - 1);
+        for (int bin = freedBins; bin < endBin; bin++) {
+            seconds[bin] = null;
+            touched[bin] = null;
+            squares[bin] = null;
+        }
+        freedBins = Math.max(freedBins, endBin);
+    }
+
+    // Tile ids ordered by x, then y, so exports do not depend on the order tiles were first seen in.
+    public int[] sortedTiles() {
+        Integer[] tiles = new Integer[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tiles[tile] = tile;
+        }
+        Arrays.sort(tiles, (a, b) -> tileX[a] != tileX[b] ? Integer.compare(tileX[a], tileX[b])
+                : Integer.compare(tileY[a], tileY[b]));
+        int[] sorted = new int[tileCount];
+        for (int i = 0; i < tileCount; i++) {
+            sorted[i] = tiles[i];
+        }
+        return sorted;
+    }
+
+    public void mergeFrom(TileHourAccumulator other) {
+        if (other.sampleRate != sampleRate) {
+            throw new IllegalArgumentException("Cannot merge a sample rate of " + other.sampleRate + " into "
+                    + sampleRate);
+        }
+        for (int bin = 0; bin < other.binCount(); bin++) {
+            for (int tile = 0; tile < other.tileCount; tile++) {
+                if (other.isTouched(tile, bin)) {
+                    add(tileId(other.tileX[tile], other.tileY[tile]), bin, other.seconds(tile, bin),
+                            other.square(tile, bin));
+                }
+            }
+        }
+    }
+
+    // Aggregate on a coarser grid: every tile goes to the tileSize tile containing it and its seconds add up there.
+    // Needs tileSize to be a multiple of the tile size the accumulator was filled with, so tiles nest exactly.
+    // Only the bins in [fromBin, toBin) that are not freed are rolled up, the others stay empty.
+    public TileHourAccumulator rollUp(int tileSize, int fromBin, int toBin) {
+        TileHourAccumulator coarse = new TileHourAccumulator(binWidth, sampleRate);
+        int from = Math.max(fromBin, freedBins);
+        int to = Math.min(toBin, binCount());
+        for (int tile = 0; tile < tileCount; tile++) {
+            int coarseTile = coarse.tileId(Math.floorDiv(tileX[tile], tileSize) * tileSize,
+                    Math.floorDiv(tileY[tile], tileSize) * tileSize);
+            for (int bin = from; bin < to; bin++) {
+                if (isTouched(tile, bin)) {
+                    coarse.add(coarseTile, bin, seconds(tile, bin), square(tile, bin));
+                }
+            }
+        }
+        return coarse;
+    }
+
+    // Checkpoint: tiles in id order, then every bin's totals and touched bits (and squares for a sample), freed bins
+    // and late counts.
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(binWidth);
+        out.writeInt(tileCount);
+        for (int tile = 0; tile < tileCount; tile++) {
+            out.writeInt(tileX[tile]);
+            out.writeInt(tileY[tile]);
+        }
+        out.writeInt(freedBins);
+        out.writeLong(lateSegments);
+        out.writeLong(lateSeconds);
+        out.writeInt(seconds.length);
+        for (int bin = 0; bin < seconds.length; bin++) {
+            writeRow(out, seconds[bin]);
+            writeRow(out, touched[bin]);
+            if (isSampled()) {
+                writeRow(out, squares[bin]);
+            }
+        }
+    }
+
+    private static void writeRow(DataOutputStream out, long[] row) throws IOException {
+        out.writeInt(row == null ? -1 : row.length);
+        if (row != null) {
+            for (long value : row) {
+                out.writeLong(value);
+            }
+        }
+    }
+
+    // Restores a checkpoint into an empty accumulator; tiles get the same ids as when it was written.
+    public void read(DataInputStream in) throws IOException {
+        if (tileCount != 0 || seconds.length != 0) {
+            throw new IllegalStateException("Checkpoints can only be read into an empty accumulator");
+        }
+        int storedBinWidth = in.readInt();
+        if (storedBinWidth != binWidth) {
+            throw new IOException("Checkpoint has bin width " + storedBinWidth + ", configured is " + binWidth);
+        }
+        int tiles = in.readInt();
+        for (int tile = 0; tile < tiles; tile++) {
+            tileId(in.readInt(), in.readInt());
+        }
+        freedBins = in.readInt();
+        lateSegments = in.readLong();
+        lateSeconds = in.readLong();
+        int bins = in.readInt();
+        seconds = new long[bins][];
+        touched = new long[bins][];
+        squares = new long[bins][];
+        for (int bin = 0; bin < bins; bin++) {
+            seconds[bin] = readRow(in);
+            touched[bin] = readRow(in);
+            if (isSampled()) {
+                squares[bin] = readRow(in);
+            }
+        }
+    }
+
+    private static long[] readRow(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        long[] row = new long[length];
+        for (int i = 0; i < length; i++) {
+            row[i] = in.readLong();
+        }
+        return row;
+    }
+
+    private void ensureBin(int bin) {
+        if (bin >= seconds.length) {
+            int bins = Math.max(bin + 1, seconds.length * 2);
+            seconds = Arrays.copyOf(seconds, bins);
+            touched = Arrays.copyOf(touched, bins);
+            squares = Arrays.copyOf(squares, bins);
+        }
+    }
+
+    private static long[] grow(long[] array, int size) {
+        return array == null ? new long[size] : Arrays.copyOf(array, size);
+    }
+
+    public int tileId(int x, int y) {
+        long key = ((long) x << 32) | (y & 0xFFFFFFFFL);
+        int mask = keys.length - 1;
+        int pos = mix(key) & mask;
+        while (slots[pos] != 0) {
+            if (keys[pos] == key) {
+                return slots[pos] - 1;
+            }
+            pos = (pos + 1) & mask;
+        }
+
+        int tile = tileCount++;
+        if (tile == tileX.length) {
+            tileX = Arrays.copyOf(tileX, tile * 2);
+            tileY = Arrays.copyOf(tileY, tile * 2);
+        }
+        tileX[tile] = x;
+        tileY[tile] = y;
+        keys[pos] = key;
+        slots[pos] = tile + 1;
+        if (tileCount * 2 > keys.length) {
+            rehash();
+        }
+        return tile;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long[oldKeys.length * 2];
+        slots = new int[oldSlots.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != 0) {
+                int pos = mix(oldKeys[i]) & mask;
+                while (slots[pos] != 0) {
+                    pos = (pos + 1) & mask;
+                }
+                keys[pos] = oldKeys[i];
+                slots[pos] = oldSlots[i];
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
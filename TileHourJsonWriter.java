@@ -0,0 +1,76 @@
+package org.matsim.project;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Writes {"x,y": {"bin": {"population": value}}} tile by tile from the accumulator, without building an object tree.
+// For a sample every bin also gets the "standardError" of its population.
+class TileHourJsonWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final boolean pretty;
+
+    public TileHourJsonWriter(boolean pretty) {
+        this.pretty = pretty;
+    }
+
+    // Output is gzip compressed if the path ends with ".gz".
+    public void write(TileHourAccumulator accumulator, String filePath) throws IOException {
+        write(accumulator, filePath, 0, accumulator.binCount());
+    }
+
+    // Writes only the bins in [fromBin, toBin), e.g. the one that was just completed.
+    public void write(TileHourAccumulator accumulator, String filePath, int fromBin, int toBin) throws IOException {
+        try (OutputStream out = openOutput(filePath);
+                JsonGenerator generator = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            if (pretty) {
+                generator.useDefaultPrettyPrinter();
+            }
+            toBin = Math.min(toBin, accumulator.binCount());
+            String[] binNames = new String[Math.max(toBin, 0)];
+            for (int bin = fromBin; bin < toBin; bin++) {
+                binNames[bin] = String.valueOf(bin);
+            }
+
+            generator.writeStartObject();
+            for (int tile : accumulator.sortedTiles()) {
+                boolean started = false;
+                for (int bin = fromBin; bin < toBin; bin++) {
+                    if (!accumulator.isTouched(tile, bin)) {
+                        continue;
+                    }
+                    if (!started) {
+                        generator.writeObjectFieldStart(accumulator.tileX(tile) + "," + accumulator.tileY(tile));
+                        started = true;
+                    }
+                    generator.writeObjectFieldStart(binNames[bin]);
+                    generator.writeNumberField("population", accumulator.population(tile, bin));
+                    if (accumulator.isSampled()) {
+                        generator.writeNumberField("standardError", accumulator.standardError(tile, bin));
+                    }
+                    generator.writeEndObject();
+                }
+                if (started) {
+                    generator.writeEndObject();
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    static OutputStream openOutput(String filePath) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filePath), BUFFER_SIZE);
+        if (filePath.endsWith(".gz")) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,88 @@
+package org.matsim.project;
+
+import org.matsim.project.utils.GridTraversal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Writes the population of the accumulator as a dense float raster per time bin, straight into a memory-mapped
+// file that readers can map as well and index without parsing. Little-endian throughout:
+//   0  int    magic "ATR1"         4  int    version           8  int    header bytes (64)   12 int tile size
+//   16 double origin x             24 double origin y          32 int    columns             36 int rows
+//   40 int    bins                 44 int    first bin          48 int    bin width (s)       52 reserved
+// followed by float population[bin - firstBin][row][column], row 0 at the origin (south), column 0 at the west,
+// scaled up like the JSON when the tracker ran on a sample.
+// The tile at column c and row r is the one the JSON calls "originX + c * tileSize,originY + r * tileSize".
+class TileRasterWriter {
+
+    static final int MAGIC = 0x41545231; // "ATR1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+
+    private final int tileSize;
+    private final int originX;
+    private final int originY;
+    private final int columns;
+    private final int rows;
+
+    // Grid over the bounding box (minX, minY, maxX, maxY), snapped outwards to whole tiles.
+    public TileRasterWriter(double[] boundingBox, int tileSize) {
+        this.tileSize = tileSize;
+        this.originX = GridTraversal.snap(boundingBox[0], tileSize);
+        this.originY = GridTraversal.snap(boundingBox[1], tileSize);
+        this.columns = (GridTraversal.snap(boundingBox[2], tileSize) - originX) / tileSize + 1;
+        this.rows = (GridTraversal.snap(boundingBox[3], tileSize) - originY) / tileSize + 1;
+        if ((long) columns * rows * Float.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Raster of " + columns + " x " + rows + " tiles is too large for one bin, "
+                    + "use a larger tile size");
+        }
+    }
+
+    // Writes the bins still held by the accumulator, [freedBins, binCount). Returns the tiles outside the grid.
+    public int write(TileHourAccumulator accumulator, String filePath) throws IOException {
+        int firstBin = accumulator.freedBins();
+        int bins = Math.max(0, accumulator.binCount() - firstBin);
+        long binBytes = (long) columns * rows * Float.BYTES;
+
+        // the cell of every tile, -1 outside the grid
+        int[] cells = new int[accumulator.tileCount()];
+        int outside = 0;
+        for (int tile = 0; tile < cells.length; tile++) {
+            int column = Math.floorDiv(accumulator.tileX(tile) - originX, tileSize);
+            int row = Math.floorDiv(accumulator.tileY(tile) - originY, tileSize);
+            if (column < 0 || column >= columns || row < 0 || row >= rows) {
+                cells[tile] = -1;
+                outside++;
+            } else {
+                cells[tile] = row * columns + column;
+            }
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw"); FileChannel channel = file.getChannel()) {
+            // a fresh file of the full size reads as zeros wherever nothing is written
+            file.setLength(0);
+            file.setLength(HEADER_BYTES + bins * binBytes);
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_BYTES).putInt(tileSize);
+            header.putDouble(originX).putDouble(originY);
+            header.putInt(columns).putInt(rows).putInt(bins).putInt(firstBin).putInt(accumulator.binWidth());
+
+            for (int bin = firstBin; bin < firstBin + bins; bin++) {
+                MappedByteBuffer raster = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + (bin - firstBin) * binBytes, binBytes);
+                raster.order(ByteOrder.LITTLE_ENDIAN);
+                for (int tile = 0; tile < cells.length; tile++) {
+                    if (cells[tile] >= 0 && accumulator.isTouched(tile, bin)) {
+                        raster.putFloat(cells[tile] * Float.BYTES, (float) accumulator.population(tile, bin));
+                    }
+                }
+            }
+        }
+        return outside;
+    }
+}
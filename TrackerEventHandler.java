@@ -0,0 +1,31 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
+import org.matsim.api.core.v01.events.handler.ActivityStartEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonArrivalEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
+
+// The events the tracker handles, implemented by the handler and by everything wrapped around it (shards, metrics),
+// together with gauges of the handler state for progress reporting.
+// The gauges may be read from another thread while events are handled; they are then only approximate.
+interface TrackerEventHandler
+        extends LinkEnterEventHandler, LinkLeaveEventHandler, PersonEntersVehicleEventHandler,
+        PersonLeavesVehicleEventHandler, ActivityStartEventHandler, ActivityEndEventHandler,
+        PersonDepartureEventHandler, PersonArrivalEventHandler {
+
+    // persons seen so far
+    long knownPersons();
+
+    // persons currently on a tracked leg
+    long travellingPersons();
+
+    // vehicles with at least one tracked person in them
+    long occupiedVehicles();
+
+    // records in the segment store
+    long segmentCount();
+}
@@ -0,0 +1,76 @@
+package org.matsim.project;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The outputs of one export pass, e.g.
+//   tracker.export(new TrackerExport().json("tiles.json").csv("details.csv").sink(mySink));
+// All outputs are written at the same time: the tile/bin outputs from the aggregate on threads of their own, the
+// CSV and the registered sinks from a single traversal of the person segments, every sink on its own thread. The
+// export takes about as long as its slowest output. A sink belongs to one export, it is finished by it.
+public class TrackerExport {
+
+    private String jsonPath = null;
+    private String csvPath = null;
+    private String rasterPath = null;
+    private final List<SegmentSink> sinks = new ArrayList<>();
+
+    // tile/bin JSON as written by savePersonsTimeListToJson, with its pyramid levels
+    public TrackerExport json(String filePath) {
+        this.jsonPath = filePath;
+        return this;
+    }
+
+    // person segment CSV as written by savePersonToTileMapCsv, split into csvPartitions files if configured
+    public TrackerExport csv(String filePath) {
+        this.csvPath = filePath;
+        return this;
+    }
+
+    // population raster as written by savePopulationRaster
+    public TrackerExport raster(String filePath) {
+        this.rasterPath = filePath;
+        return this;
+    }
+
+    public TrackerExport sink(SegmentSink sink) {
+        sinks.add(sink);
+        return this;
+    }
+
+    String jsonPath() {
+        return jsonPath;
+    }
+
+    String csvPath() {
+        return csvPath;
+    }
+
+    String rasterPath() {
+        return rasterPath;
+    }
+
+    List<SegmentSink> sinks() {
+        return Collections.unmodifiableList(sinks);
+    }
+
+    // the outputs that read the per-person segments
+    boolean needsSegments() {
+        return csvPath != null || !sinks.isEmpty();
+    }
+
+    // Metrics phase of the export; a single built-in output keeps the name of its save method's phase.
+    String phase() {
+        int outputs = (jsonPath != null ? 1 : 0) + (csvPath != null ? 1 : 0) + (rasterPath != null ? 1 : 0)
+                + sinks.size();
+        if (outputs == 1 && jsonPath != null) {
+            return "exportJson";
+        } else if (outputs == 1 && csvPath != null) {
+            return "exportCsv";
+        } else if (outputs == 1 && rasterPath != null) {
+            return "exportRaster";
+        }
+        return "export";
+    }
+}
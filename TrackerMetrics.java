@@ -0,0 +1,254 @@
+package org.matsim.project;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Counters and timings of one tracker run: events per type, time per phase, link cache hits and the state of the
+// handler at the end. Phases and progress are also committed as JFR events (category "Agent Tracker"), so they
+// show up next to GC and allocation data in a flight recording. The run report is this as JSON.
+class TrackerMetrics {
+
+    static final int LINK_ENTER = 0;
+    static final int LINK_LEAVE = 1;
+    static final int ENTERS_VEHICLE = 2;
+    static final int LEAVES_VEHICLE = 3;
+    static final int ACTIVITY_START = 4;
+    static final int ACTIVITY_END = 5;
+    static final int DEPARTURE = 6;
+    static final int ARRIVAL = 7;
+    static final String[] EVENT_TYPES = { LinkEnterEvent.EVENT_TYPE, LinkLeaveEvent.EVENT_TYPE,
+            PersonEntersVehicleEvent.EVENT_TYPE, PersonLeavesVehicleEvent.EVENT_TYPE, ActivityStartEvent.EVENT_TYPE,
+            ActivityEndEvent.EVENT_TYPE, PersonDepartureEvent.EVENT_TYPE, PersonArrivalEvent.EVENT_TYPE };
+
+    private static final double NANOS = 1e9;
+    private static final long MB = 1 << 20;
+
+    @Name("org.matsim.project.TrackerPhase")
+    @Label("Tracker Phase")
+    @Category("Agent Tracker")
+    @Description("Network load, reading the events or an export")
+    public static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        transient long startNanos;
+    }
+
+    @Name("org.matsim.project.TrackerProgress")
+    @Label("Tracker Progress")
+    @Category("Agent Tracker")
+    public static class ProgressEvent extends Event {
+        @Label("Events")
+        long events;
+
+        @Label("Events per Second")
+        double eventsPerSecond;
+
+        @Label("Known Persons")
+        long knownPersons;
+
+        @Label("Travelling Persons")
+        long travellingPersons;
+
+        @Label("Occupied Vehicles")
+        long occupiedVehicles;
+
+        @Label("Segments")
+        long segments;
+
+        @Label("Heap Used")
+        @DataAmount
+        long heapUsed;
+    }
+
+    private final long[] eventCounts = new long[EVENT_TYPES.length];
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    // time in the handler seen from the reader thread, extrapolated from sampled events
+    private long readerHandlingNanos = 0;
+    // time the shard threads spent handling, summed over the shards; 0 for a serial run
+    private long shardHandlingNanos = 0;
+    private int shards = 1;
+    private long peakHeap = 0;
+
+    // handler state at the end of the run
+    private long linkCacheHits;
+    private long linkCacheMisses;
+    private long knownPersons;
+    private long travellingPersons;
+    private long occupiedVehicles;
+    private long segments;
+    private int tiles;
+
+    public static PhaseEvent beginPhase(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    // Commits the JFR event and returns the duration of the phase.
+    public static long endPhase(PhaseEvent event) {
+        event.commit();
+        return System.nanoTime() - event.startNanos;
+    }
+
+    // Ends the phase and adds its duration to the run.
+    public void record(PhaseEvent event) {
+        addPhase(event.phase, endPhase(event));
+    }
+
+    public synchronized void addPhase(String phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+        sampleHeap();
+    }
+
+    public synchronized long phaseNanos(String phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+
+    public void countEvent(int type) {
+        eventCounts[type]++;
+    }
+
+    public long eventCount() {
+        long total = 0;
+        for (long count : eventCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public void addReaderHandling(long nanos) {
+        readerHandlingNanos += nanos;
+    }
+
+    public void setShardHandling(int shards, long nanos) {
+        this.shards = shards;
+        this.shardHandlingNanos = nanos;
+    }
+
+    // The handler the shards are merged into has no person or vehicle states of its own, so with shards these
+    // gauges come from the shards, summed; collect keeps them.
+    public void setShardGauges(ShardedEventHandler shardedHandler) {
+        knownPersons = shardedHandler.knownPersons();
+        travellingPersons = shardedHandler.travellingPersons();
+        occupiedVehicles = shardedHandler.occupiedVehicles();
+    }
+
+    public synchronized long sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        peakHeap = Math.max(peakHeap, used);
+        return used;
+    }
+
+    public void progress(TrackerEventHandler handler, long events, double eventsPerSecond) {
+        ProgressEvent event = new ProgressEvent();
+        event.events = events;
+        event.eventsPerSecond = eventsPerSecond;
+        event.knownPersons = handler.knownPersons();
+        event.travellingPersons = handler.travellingPersons();
+        event.occupiedVehicles = handler.occupiedVehicles();
+        event.segments = handler.segmentCount();
+        event.heapUsed = sampleHeap();
+        event.commit();
+        System.out.println(String.format("events: %,d (%,.0f/s), persons: %,d (%,d travelling), vehicles in use: %,d, "
+                + "segments: %,d, heap: %,d MB", events, eventsPerSecond, event.knownPersons, event.travellingPersons,
+                event.occupiedVehicles, event.segments, event.heapUsed / MB));
+    }
+
+    // Takes the final state of the merged handler.
+    public void collect(AgentTrackerEventHandler handler) {
+        linkCacheHits = handler.linkCacheHits();
+        linkCacheMisses = handler.linkCacheMisses();
+        if (shards == 1) {
+            knownPersons = handler.knownPersons();
+            travellingPersons = handler.travellingPersons();
+            occupiedVehicles = handler.occupiedVehicles();
+        }
+        segments = handler.segmentCount();
+        tiles = handler.tileCount();
+        sampleHeap();
+    }
+
+    public String summary() {
+        double seconds = phaseNanos("readEvents") / NANOS;
+        return String.format("Read %,d events in %.1f s (%,.0f/s)", eventCount(), seconds,
+                seconds > 0 ? eventCount() / seconds : 0);
+    }
+
+    public synchronized void writeReport(String filePath) throws IOException {
+        double readSeconds = phaseNanos("readEvents") / NANOS;
+        try (JsonGenerator generator = new JsonFactory().createGenerator(new File(filePath), JsonEncoding.UTF8)) {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+
+            generator.writeObjectFieldStart("events");
+            generator.writeNumberField("total", eventCount());
+            generator.writeNumberField("perSecond", readSeconds > 0 ? eventCount() / readSeconds : 0);
+            generator.writeObjectFieldStart("byType");
+            for (int type = 0; type < EVENT_TYPES.length; type++) {
+                generator.writeObjectFieldStart(EVENT_TYPES[type]);
+                generator.writeNumberField("count", eventCounts[type]);
+                generator.writeNumberField("perSecond", readSeconds > 0 ? eventCounts[type] / readSeconds : 0);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+
+            // readEvents = parse + handling on the reader thread; with shards the reader only dispatches
+            generator.writeObjectFieldStart("phaseSeconds");
+            for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+                generator.writeNumberField(phase.getKey(), phase.getValue() / NANOS);
+            }
+            generator.writeNumberField("parse", Math.max(0, phaseNanos("readEvents") - readerHandlingNanos) / NANOS);
+            if (shards > 1) {
+                generator.writeNumberField("dispatch", readerHandlingNanos / NANOS);
+                generator.writeNumberField("handling", shardHandlingNanos / NANOS);
+            } else {
+                generator.writeNumberField("handling", readerHandlingNanos / NANOS);
+            }
+            generator.writeEndObject();
+            generator.writeNumberField("shards", shards);
+
+            generator.writeObjectFieldStart("linkCache");
+            generator.writeNumberField("hits", linkCacheHits);
+            generator.writeNumberField("misses", linkCacheMisses);
+            long lookups = linkCacheHits + linkCacheMisses;
+            generator.writeNumberField("hitRatio", lookups > 0 ? linkCacheHits / (double) lookups : 0);
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("atEnd");
+            generator.writeNumberField("knownPersons", knownPersons);
+            generator.writeNumberField("travellingPersons", travellingPersons);
+            generator.writeNumberField("occupiedVehicles", occupiedVehicles);
+            generator.writeNumberField("segments", segments);
+            generator.writeNumberField("tiles", tiles);
+            generator.writeEndObject();
+
+            generator.writeNumberField("peakHeapMb", peakHeap / MB);
+            generator.writeEndObject();
+        }
+    }
+}
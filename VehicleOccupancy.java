@@ -0,0 +1,106 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+// Persons in every vehicle, in arrays indexed by vehicle Id.index(). Every person remembers its slot in the vehicle,
+// so boarding and alighting are O(1): alighting moves the last occupant into the freed slot.
+// The order of the occupants is therefore not the boarding order.
+class VehicleOccupancy {
+
+    private static final Id<Person>[] EMPTY = new Id[0];
+
+    private Id<Person>[][] occupants = new Id[0][];
+    private int[] counts = new int[0];
+    // person index -> slot in its vehicle
+    private int[] slots = new int[0];
+    private long occupiedVehicles = 0;
+
+    public int count(Id<Vehicle> vehicleId) {
+        int vehicle = vehicleId.index();
+        return vehicle < counts.length ? counts[vehicle] : 0;
+    }
+
+    // vehicles with at least one person in them
+    public long occupiedVehicles() {
+        return occupiedVehicles;
+    }
+
+    public Id<Person> occupant(Id<Vehicle> vehicleId, int i) {
+        return occupants[vehicleId.index()][i];
+    }
+
+    // By vehicle index, for checkpoints: vehicles below capacity() may have occupants.
+    public int capacity() {
+        return counts.length;
+    }
+
+    public int countAt(int vehicle) {
+        return counts[vehicle];
+    }
+
+    public Id<Person> occupantAt(int vehicle, int i) {
+        return occupants[vehicle][i];
+    }
+
+    public void add(Id<Vehicle> vehicleId, Id<Person> personId) {
+        int vehicle = vehicleId.index();
+        if (vehicle >= counts.length) {
+            int length = Math.max(vehicle + 1, Math.max(256, counts.length * 2));
+            int from = occupants.length;
+            occupants = Arrays.copyOf(occupants, length);
+            Arrays.fill(occupants, from, length, EMPTY);
+            counts = Arrays.copyOf(counts, length);
+        }
+        int count = counts[vehicle];
+        if (count == occupants[vehicle].length) {
+            occupants[vehicle] = Arrays.copyOf(occupants[vehicle], Math.max(4, count * 2));
+        }
+        occupants[vehicle][count] = personId;
+        counts[vehicle] = count + 1;
+        if (count == 0) {
+            occupiedVehicles++;
+        }
+
+        int person = personId.index();
+        if (person >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(person + 1, Math.max(1024, slots.length * 2)));
+        }
+        slots[person] = count;
+    }
+
+    public void remove(Id<Vehicle> vehicleId, Id<Person> personId) {
+        int vehicle = vehicleId.index();
+        if (vehicle >= counts.length) {
+            return;
+        }
+        Id<Person>[] inVehicle = occupants[vehicle];
+        int count = counts[vehicle];
+        int person = personId.index();
+        int slot = person < slots.length ? slots[person] : -1;
+        if (slot < 0 || slot >= count || inVehicle[slot] != personId) {
+            // the person boarded another vehicle in between, so its slot is not the one in this vehicle
+            slot = -1;
+            for (int i = 0; i < count; i++) {
+                if (inVehicle[i] == personId) {
+                    slot = i;
+                    break;
+                }
+            }
+            if (slot == -1) {
+                return;
+            }
+        }
+        Id<Person> last = inVehicle[count - 1];
+        inVehicle[slot] = last;
+        slots[last.index()] = slot;
+        inVehicle[count - 1] = null;
+        counts[vehicle] = count - 1;
+        if (count == 1) {
+            occupiedVehicles--;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.matsim.project;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// End-to-end run on a synthetic scenario: generates it with ScenarioGenerator (unless the directory already holds
+// one with the same options), reads it with AgentTracker.iterateEvents and exports the JSON and the CSV in one pass.
+// Reports events/s, wall time per phase, peak heap, direct memory and output sizes, and writes them to
+// e2e-result.json in the directory. Nothing needs to be downloaded, so runs on different machines compare.
+//   java -Xmx8g -cp <classpath> org.matsim.project.EndToEndBenchmark <directory> [agents=1000000] [shards=4] ...
+// Options are those of ScenarioGenerator, plus shards, tileSize and sampleRate for the tracker.
+public class EndToEndBenchmark {
+
+    private static final String NETWORK_FILE = "network.xml.gz";
+    private static final String EVENTS_FILE = "events.xml.gz";
+    private static final String SCENARIO_FILE = "scenario.txt";
+    private static final String RESULT_FILE = "e2e-result.json";
+    private static final double NANOS = 1e9;
+    private static final long MB = 1 << 20;
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args[0]);
+        directory.mkdirs();
+        AgentTracker tracker = new AgentTracker(new String[0], true);
+        AgentTrackerConfig config = tracker.getConfig();
+        // tracker options are taken out, the rest goes to the generator
+        List<String> generatorArgs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("shards=")) {
+                config.setShards(Integer.parseInt(args[i].substring("shards=".length())));
+            } else if (args[i].startsWith("tileSize=")) {
+                config.setTileSize(Integer.parseInt(args[i].substring("tileSize=".length())));
+            } else if (args[i].startsWith("sampleRate=")) {
+                config.setSampleRate(Double.parseDouble(args[i].substring("sampleRate=".length())));
+            } else {
+                generatorArgs.add(args[i]);
+            }
+        }
+        ScenarioGenerator generator = new ScenarioGenerator();
+        generator.configure(generatorArgs.toArray(new String[0]), 0);
+
+        Map<String, Double> wallSeconds = new LinkedHashMap<>();
+        File network = new File(directory, NETWORK_FILE);
+        File events = new File(directory, EVENTS_FILE);
+        File scenario = new File(directory, SCENARIO_FILE);
+        long fileEvents;
+        String existing = scenario.isFile() ? new String(Files.readAllBytes(scenario.toPath()), StandardCharsets.UTF_8)
+                : "";
+        if (existing.startsWith(generator.describe() + "\n") && network.isFile() && events.isFile()) {
+            fileEvents = Long.parseLong(existing.substring(existing.indexOf('\n') + 1).trim());
+            System.out.println("Using the scenario in " + directory);
+        } else {
+            System.out.println("Generating " + generator.describe());
+            long start = System.nanoTime();
+            fileEvents = generator.write(network.getPath(), events.getPath());
+            wallSeconds.put("generate", (System.nanoTime() - start) / NANOS);
+            Files.write(scenario.toPath(), (generator.describe() + "\n" + fileEvents + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        File output = new File(directory, "output");
+        output.mkdirs();
+        File report = new File(output, "agent_tracker_report.json");
+        config.setRunReport(report.getPath());
+        config.setProgressInterval(0);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        long start = System.nanoTime();
+        tracker.iterateEvents(events.getPath(), network.getPath());
+        wallSeconds.put("iterateEvents", (System.nanoTime() - start) / NANOS);
+        long directBytes = directMemory();
+
+        start = System.nanoTime();
+        File tiles = new File(output, "agent_tracker_tiles.json");
+        File details = new File(output, "agent_tracker_details.csv.gz");
+        tracker.export(new TrackerExport().json(tiles.getPath()).csv(details.getPath()));
+        wallSeconds.put("export", (System.nanoTime() - start) / NANOS);
+        long peakHeap = peakHeap();
+        tracker.close();
+
+        // phases as measured by the tracker itself
+        JsonNode trackerReport = new ObjectMapper().readTree(report);
+        Map<String, Double> phaseSeconds = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = trackerReport.get("phaseSeconds").fields(); it.hasNext();) {
+            Map.Entry<String, JsonNode> phase = it.next();
+            phaseSeconds.put(phase.getKey(), phase.getValue().asDouble());
+        }
+        long trackedEvents = trackerReport.get("events").get("total").asLong();
+        double readSeconds = phaseSeconds.getOrDefault("readEvents", 0.0);
+
+        File result = new File(directory, RESULT_FILE);
+        try (JsonGenerator json = new JsonFactory().createGenerator(result, JsonEncoding.UTF8)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+            json.writeStringField("scenario", generator.describe());
+            json.writeNumberField("shards", config.getShards());
+            json.writeNumberField("sampleRate", config.getSampleRate());
+            json.writeObjectFieldStart("events");
+            json.writeNumberField("inFile", fileEvents);
+            json.writeNumberField("tracked", trackedEvents);
+            json.writeNumberField("perSecond", readSeconds > 0 ? fileEvents / readSeconds : 0);
+            json.writeNumberField("trackedPerSecond", readSeconds > 0 ? trackedEvents / readSeconds : 0);
+            json.writeEndObject();
+            json.writeObjectFieldStart("wallSeconds");
+            for (Map.Entry<String, Double> phase : wallSeconds.entrySet()) {
+                json.writeNumberField(phase.getKey(), phase.getValue());
+            }
+            json.writeEndObject();
+            json.writeObjectFieldStart("phaseSeconds");
+            for (Map.Entry<String, Double> phase : phaseSeconds.entrySet()) {
+                json.writeNumberField(phase.getKey(), phase.getValue());
+            }
+            json.writeEndObject();
+            json.writeNumberField("peakHeapMb", peakHeap / MB);
+            json.writeNumberField("directMemoryMb", directBytes / MB);
+            json.writeObjectFieldStart("outputBytes");
+            json.writeNumberField("events", events.length());
+            json.writeNumberField("tiles", tiles.length());
+            json.writeNumberField("details", details.length());
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        System.out.println(String.format("%,d events in %.1f s (%,.0f/s), export %.1f s, peak heap %,d MB, "
+                + "direct memory %,d MB, tiles %,d bytes, details %,d bytes", fileEvents, readSeconds,
+                readSeconds > 0 ? fileEvents / readSeconds : 0, wallSeconds.get("export"), peakHeap / MB,
+                directBytes / MB, tiles.length(), details.length()));
+        System.out.println("Result written to " + result);
+    }
+
+    // Sum of the peaks of the heap pools since they were reset; pools peak at different times, so this is an upper
+    // bound of the peak of the whole heap.
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // direct buffers, where the segment store keeps the person segments
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,133 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.vehicles.Vehicle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// One full export of a synthetic day. Exports append the final activities to the handler state,
+// so the handler is rebuilt before every iteration and each iteration runs the export exactly once.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExportBenchmark {
+
+    private static final int LINKS = 4096;
+    private static final int TRIPS = 4;
+
+    @Param({ "10000" })
+    public int persons;
+
+    @Param({ "agent_tracker_details.csv", "agent_tracker_details.csv.gz" })
+    public String csvName;
+
+    private NetworkSnapshot network;
+    private LinkTileIndex tileIndex;
+    private File directory;
+    private AgentTrackerEventHandler handler;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        LinkSamples links = new LinkSamples(LINKS, 42);
+        Network network = NetworkUtils.createNetwork();
+        for (int i = 0; i < LINKS; i++) {
+            Node from = NetworkUtils.createAndAddNode(network, Id.createNodeId("from_" + i),
+                    new Coord(links.x1[i], links.y1[i]));
+            Node to = NetworkUtils.createAndAddNode(network, Id.createNodeId("to_" + i),
+                    new Coord(links.x2[i], links.y2[i]));
+            NetworkUtils.createAndAddLink(network, Id.createLinkId(String.valueOf(i)), from, to, 100, 13.9, 1800, 1);
+        }
+        this.network = NetworkSnapshot.of(network);
+        tileIndex = LinkTileIndex.build(this.network, 100);
+        directory = Files.createTempDirectory("agent-tracker-bench").toFile();
+    }
+
+    // Every person drives TRIPS single-link trips between activities and starts a last activity in the evening.
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        handler = new AgentTrackerEventHandler(network, tileIndex, new Pattern[0], new AgentTrackerConfig());
+        Random random = new Random(7);
+        for (int p = 0; p < persons; p++) {
+            Id<Person> personId = Id.createPersonId("person_" + p);
+            Id<Vehicle> vehicleId = Id.createVehicleId("car_" + p);
+            double time = 6 * 3600 + random.nextInt(3 * 3600);
+            for (int trip = 0; trip < TRIPS; trip++) {
+                Id<Link> linkId = Id.createLinkId(String.valueOf(random.nextInt(LINKS)));
+                handler.handleEvent(new ActivityEndEvent(time, personId, linkId, null, "act", null));
+                handler.handleEvent(new PersonDepartureEvent(time, personId, linkId, "car", "car"));
+                handler.handleEvent(new PersonEntersVehicleEvent(time, personId, vehicleId));
+                handler.handleEvent(new LinkEnterEvent(time + 1, vehicleId, linkId));
+                time += 30 + random.nextInt(300);
+                handler.handleEvent(new LinkLeaveEvent(time, vehicleId, linkId));
+                handler.handleEvent(new PersonLeavesVehicleEvent(time, personId, vehicleId));
+                handler.handleEvent(new PersonArrivalEvent(time, personId, linkId, "car"));
+                handler.handleEvent(new ActivityStartEvent(time, personId, linkId, null, "act", null));
+                time += 600 + random.nextInt(3 * 3600);
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        handler.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void tileHourJson() {
+        handler.savePersonsTimeListToJson(new File(directory, "agent_tracker_tiles.json").getPath());
+    }
+
+    @Benchmark
+    public void personTileCsv() {
+        handler.savePersonToTileMapCsv(new File(directory, csvName).getPath());
+    }
+
+    @Benchmark
+    public void jsonAndCsv() {
+        handler.export(new TrackerExport().json(new File(directory, "agent_tracker_tiles.json").getPath())
+                .csv(new File(directory, csvName).getPath()));
+    }
+}
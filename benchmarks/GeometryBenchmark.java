@@ -0,0 +1,105 @@
+package org.matsim.project;
+
+import org.matsim.project.utils.BresenhamLine;
+import org.matsim.project.utils.GridTraversal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Tile decomposition of single links; every invocation handles all LINKS sample links, reported per link.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeometryBenchmark {
+
+    private static final int LINKS = 1024;
+
+    private LinkSamples links;
+    private final GridTraversal traversal = new GridTraversal(100);
+
+    // input of segmentInsideSquare: the Bresenham tiles of every link and the line through it
+    private int[][] tileX;
+    private int[][] tileY;
+    private double[] slope;
+    private double[] intercept;
+
+    @Setup
+    public void setUp() {
+        links = new LinkSamples(LINKS, 42);
+        tileX = new int[LINKS][];
+        tileY = new int[LINKS][];
+        slope = new double[LINKS];
+        intercept = new double[LINKS];
+        for (int i = 0; i < LINKS; i++) {
+            Set<BresenhamLine.Pair> tiles = BresenhamLine.bresenhamLine((int) links.x1[i], (int) links.y1[i],
+                    (int) links.x2[i], (int) links.y2[i], 100, 1);
+            tileX[i] = new int[tiles.size()];
+            tileY[i] = new int[tiles.size()];
+            int j = 0;
+            for (BresenhamLine.Pair tile : tiles) {
+                tileX[i][j] = tile.x * 100;
+                tileY[i][j] = tile.y * 100;
+                j++;
+            }
+            slope[i] = (links.y2[i] - links.y1[i]) / (links.x2[i] - links.x1[i]);
+            intercept[i] = links.y1[i] - slope[i] * links.x1[i];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINKS)
+    public void bresenhamLine(Blackhole blackhole) {
+        for (int i = 0; i < LINKS; i++) {
+            blackhole.consume(BresenhamLine.bresenhamLine((int) links.x1[i], (int) links.y1[i], (int) links.x2[i],
+                    (int) links.y2[i], 100, 1));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINKS)
+    public void segmentInsideSquare(Blackhole blackhole) {
+        for (int i = 0; i < LINKS; i++) {
+            for (int j = 0; j < tileX[i].length; j++) {
+                blackhole.consume(BresenhamLine.segmentInsideSquare(slope[i], intercept[i], tileX[i][j], tileY[i][j],
+                        100, (int) links.x1[i], (int) links.y1[i], (int) links.x2[i], (int) links.y2[i]));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINKS)
+    public void calculateGridCellsWithRatio(Blackhole blackhole) {
+        for (int i = 0; i < LINKS; i++) {
+            blackhole.consume(AgentTrackerEventHandler.calculateGridCellsWithRatio(links.x1[i], links.y1[i],
+                    links.x2[i], links.y2[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINKS)
+    public void gridTraversal(Blackhole blackhole) {
+        for (int i = 0; i < LINKS; i++) {
+            traversal.reset(links.x1[i], links.y1[i], links.x2[i], links.y2[i]);
+            while (traversal.next()) {
+                blackhole.consume(traversal.tileX());
+                blackhole.consume(traversal.tileY());
+                blackhole.consume(traversal.fraction());
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.matsim.project;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.vehicles.Vehicle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// handleEvent(LinkLeaveEvent) for one vehicle: a car with its driver, or a full bus.
+// The vehicle leaves the link at the same time on every invocation, so the handler state does not grow.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({ "1", "80" })
+    public int occupancy;
+
+    // link length in metres, i.e. roughly the number of tiles the occupants are spread over times 100
+    @Param({ "150", "1500" })
+    public int linkLength;
+
+    private AgentTrackerEventHandler handler;
+    private LinkLeaveEvent leaveEvent;
+
+    @Setup
+    public void setUp() {
+        Network network = NetworkUtils.createNetwork();
+        Node from = NetworkUtils.createAndAddNode(network, Id.createNodeId("from"), new Coord(350030, 5600070));
+        Node to = NetworkUtils.createAndAddNode(network, Id.createNodeId("to"),
+                new Coord(350030 + linkLength * 0.8, 5600070 + linkLength * 0.6));
+        Id<Link> linkId = Id.createLinkId("link");
+        NetworkUtils.createAndAddLink(network, linkId, from, to, linkLength, 13.9, 1800, 1);
+
+        AgentTrackerConfig config = new AgentTrackerConfig();
+        config.setKeepPersonSegments(false);
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        handler = new AgentTrackerEventHandler(snapshot, LinkTileIndex.build(snapshot, config.getTileSize()),
+                new Pattern[0], config);
+
+        Id<Vehicle> vehicleId = Id.createVehicleId("vehicle");
+        for (int i = 0; i < occupancy; i++) {
+            Id<Person> personId = Id.createPersonId("person_" + i);
+            handler.handleEvent(new ActivityEndEvent(7 * 3600, personId, linkId, null, "home", null));
+            handler.handleEvent(new PersonDepartureEvent(7 * 3600, personId, linkId, "car", "car"));
+            handler.handleEvent(new PersonEntersVehicleEvent(7 * 3600, personId, vehicleId));
+        }
+        handler.handleEvent(new LinkEnterEvent(7 * 3600 + 10, vehicleId, linkId));
+        leaveEvent = new LinkLeaveEvent(7 * 3600 + 10 + linkLength / 10, vehicleId, linkId);
+    }
+
+    @Benchmark
+    public AgentTrackerEventHandler linkLeave() {
+        handler.handleEvent(leaveEvent);
+        return handler;
+    }
+}
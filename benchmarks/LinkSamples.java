@@ -0,0 +1,44 @@
+package org.matsim.project;
+
+import java.util.Random;
+
+// Link geometries drawn like in a typical urban MATSim network: log-normal lengths (median about 150 m,
+// 5 m to 3 km) and a large share of links running along the x or y axis, at UTM-like coordinates.
+class LinkSamples {
+
+    final double[] x1;
+    final double[] y1;
+    final double[] x2;
+    final double[] y2;
+
+    LinkSamples(int count, long seed) {
+        Random random = new Random(seed);
+        x1 = new double[count];
+        y1 = new double[count];
+        x2 = new double[count];
+        y2 = new double[count];
+        for (int i = 0; i < count; i++) {
+            double length = Math.min(3000, Math.max(5, Math.exp(Math.log(150) + 0.9 * random.nextGaussian())));
+            double dx;
+            double dy;
+            if (random.nextDouble() < 0.4) {
+                // exactly horizontal or vertical
+                int direction = random.nextInt(4);
+                dx = direction == 0 ? 1 : direction == 2 ? -1 : 0;
+                dy = direction == 1 ? 1 : direction == 3 ? -1 : 0;
+            } else {
+                double angle = random.nextDouble() * 2 * Math.PI;
+                dx = Math.cos(angle);
+                dy = Math.sin(angle);
+            }
+            x1[i] = 350000 + random.nextDouble() * 20000;
+            y1[i] = 5600000 + random.nextDouble() * 20000;
+            x2[i] = x1[i] + length * dx;
+            y2[i] = y1[i] + length * dy;
+        }
+    }
+
+    int size() {
+        return x1.length;
+    }
+}
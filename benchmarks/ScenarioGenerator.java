@@ -0,0 +1,635 @@
+package org.matsim.project;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.zip.GZIPOutputStream;
+
+// Synthetic scenario for scale tests: a MATSim network and a time-sorted events file of a home-work-home day.
+// The network is a grid of gridSize x gridSize nodes, linkLength apart, or with layout=radial as many rings around
+// a centre crossed by as many spokes. Car agents drive the shortest grid route (columns first, then rows) between
+// random links. PT agents ride the bus lines that run along every row in both directions, boarding and alighting at
+// the stops at the link ends of their row; the headway is set so that a bus carries about busOccupancy passengers.
+// Drivers are pt_ persons, so the tracker ignores them with ignorePtAgents. Vehicle entering/leaving traffic and
+// waiting events are written as well, to be skipped by the reader as in real output.
+// Events are produced in time order by a queue of agent and bus state machines. An agent only holds its route
+// while it travels, so memory depends on the number of agents, not on the number of events.
+//   java -cp <classpath> org.matsim.project.ScenarioGenerator <network.xml.gz> <events.xml.gz> [agents=100000] ...
+public class ScenarioGenerator {
+
+    public enum Layout {
+        GRID, RADIAL
+    }
+
+    private static final int EAST = 0;
+    private static final int WEST = 1;
+    private static final int NORTH = 2;
+    private static final int SOUTH = 3;
+    private static final double FREESPEED = 13.89;
+    private static final double BUS_SPEED = 8.33;
+    private static final int DWELL = 10;
+    private static final int FIRST_BUS = 5 * 3600;
+    private static final int LAST_BUS = 23 * 3600;
+
+    private int agents = 100_000;
+    private double ptShare = 0.2;
+    private int busOccupancy = 30;
+    private double linkLength = 200;
+    private int gridSize = 100;
+    private Layout layout = Layout.GRID;
+    private long seed = 1;
+
+    // bus stop arrivals relative to the departure of a trip, by row and direction (0 east, 1 west)
+    private int[][][] stopArrivals;
+    private int headway;
+
+    public static void main(String[] args) throws IOException {
+        ScenarioGenerator generator = new ScenarioGenerator();
+        generator.configure(args, 2);
+        long events = generator.write(args[0], args[1]);
+        System.out.println(String.format("Wrote %s with %,d events", generator.describe(), events));
+    }
+
+    // key=value arguments from the given position on, e.g. agents=1000000 ptShare=0.3 layout=radial
+    public void configure(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + args[i]);
+            }
+            String value = args[i].substring(equals + 1);
+            switch (args[i].substring(0, equals)) {
+            case "agents":
+                setAgents(Integer.parseInt(value));
+                break;
+            case "ptShare":
+                setPtShare(Double.parseDouble(value));
+                break;
+            case "busOccupancy":
+                setBusOccupancy(Integer.parseInt(value));
+                break;
+            case "linkLength":
+                setLinkLength(Double.parseDouble(value));
+                break;
+            case "gridSize":
+                setGridSize(Integer.parseInt(value));
+                break;
+            case "layout":
+                setLayout(Layout.valueOf(value.toUpperCase()));
+                break;
+            case "seed":
+                setSeed(Long.parseLong(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    public String describe() {
+        return "agents=" + agents + " ptShare=" + ptShare + " busOccupancy=" + busOccupancy + " linkLength="
+                + linkLength + " gridSize=" + gridSize + " layout=" + layout.name().toLowerCase() + " seed=" + seed;
+    }
+
+    public void setAgents(int agents) {
+        if (agents < 1) {
+            throw new IllegalArgumentException("agents must be at least 1, got " + agents);
+        }
+        this.agents = agents;
+    }
+
+    public void setPtShare(double ptShare) {
+        if (ptShare < 0 || ptShare > 1) {
+            throw new IllegalArgumentException("ptShare must be between 0 and 1, got " + ptShare);
+        }
+        this.ptShare = ptShare;
+    }
+
+    public void setBusOccupancy(int busOccupancy) {
+        if (busOccupancy < 1) {
+            throw new IllegalArgumentException("busOccupancy must be at least 1, got " + busOccupancy);
+        }
+        this.busOccupancy = busOccupancy;
+    }
+
+    public void setLinkLength(double linkLength) {
+        if (linkLength < 10) {
+            throw new IllegalArgumentException("linkLength must be at least 10, got " + linkLength);
+        }
+        this.linkLength = linkLength;
+    }
+
+    public void setGridSize(int gridSize) {
+        if (gridSize < 4) {
+            throw new IllegalArgumentException("gridSize must be at least 4, got " + gridSize);
+        }
+        this.gridSize = gridSize;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    // Writes both files, gzip compressed if the path ends with ".gz". Returns the number of events written.
+    public long write(String networkPath, String eventsPath) throws IOException {
+        writeNetwork(networkPath);
+        return writeEvents(eventsPath);
+    }
+
+    // --- network: node (column, row) has the index row * gridSize + column, link ids are "l" + node * 4 + direction
+
+    private int node(int column, int row) {
+        return row * gridSize + column;
+    }
+
+    // the node the link in the direction leads to, -1 if there is none
+    private int neighbour(int node, int direction) {
+        int column = node % gridSize;
+        int row = node / gridSize;
+        boolean wrap = layout == Layout.RADIAL;
+        switch (direction) {
+        case EAST:
+            return column + 1 < gridSize ? node + 1 : wrap ? node(0, row) : -1;
+        case WEST:
+            return column > 0 ? node - 1 : wrap ? node(gridSize - 1, row) : -1;
+        case NORTH:
+            return row + 1 < gridSize ? node + gridSize : -1;
+        default:
+            return row > 0 ? node - gridSize : -1;
+        }
+    }
+
+    private double x(int node) {
+        int column = node % gridSize;
+        int row = node / gridSize;
+        if (layout == Layout.GRID) {
+            return column * linkLength;
+        }
+        return (row + 1) * linkLength * Math.cos(2 * Math.PI * column / gridSize);
+    }
+
+    private double y(int node) {
+        int column = node % gridSize;
+        int row = node / gridSize;
+        if (layout == Layout.GRID) {
+            return row * linkLength;
+        }
+        return (row + 1) * linkLength * Math.sin(2 * Math.PI * column / gridSize);
+    }
+
+    private static int link(int node, int direction) {
+        return node * 4 + direction;
+    }
+
+    private static int from(int link) {
+        return link / 4;
+    }
+
+    private int to(int link) {
+        return neighbour(link / 4, link % 4);
+    }
+
+    private double length(int link) {
+        int to = to(link);
+        return Math.max(1, Math.hypot(x(to) - x(from(link)), y(to) - y(from(link))));
+    }
+
+    private static int travelTime(double length, double speed) {
+        return (int) Math.ceil(length / speed);
+    }
+
+    private void writeNetwork(String filePath) throws IOException {
+        try (Writer out = open(filePath)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!DOCTYPE network SYSTEM \"http://www.matsim.org/files/dtd/network_v2.dtd\">\n");
+            out.write("<network name=\"synthetic " + layout.name().toLowerCase() + "\">\n\n<nodes>\n");
+            for (int node = 0; node < gridSize * gridSize; node++) {
+                out.write("\t<node id=\"n" + node + "\" x=\"" + x(node) + "\" y=\"" + y(node) + "\" />\n");
+            }
+            out.write("</nodes>\n\n<links capperiod=\"01:00:00\" effectivecellsize=\"7.5\" effectivelanewidth=\"3.75\">\n");
+            for (int node = 0; node < gridSize * gridSize; node++) {
+                for (int direction = 0; direction < 4; direction++) {
+                    if (neighbour(node, direction) < 0) {
+                        continue;
+                    }
+                    int link = link(node, direction);
+                    out.write("\t<link id=\"l" + link + "\" from=\"n" + node + "\" to=\"n" + to(link) + "\" length=\""
+                            + length(link) + "\" freespeed=\"" + FREESPEED + "\" capacity=\"1800.0\" permlanes=\"1.0\" "
+                            + "oneway=\"1\" modes=\"car,bus\" />\n");
+                }
+            }
+            out.write("</links>\n\n</network>\n");
+        }
+    }
+
+    private static Writer open(String filePath) throws IOException {
+        OutputStream out = new FileOutputStream(filePath);
+        if (filePath.endsWith(".gz")) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    // --- bus lines: line (row, direction) runs from column 0 to the last column (east) or back (west); its link i
+    // ends at the stop of column i + 1 (east) or gridSize - 2 - i (west)
+
+    private int lineLink(int row, int direction, int i) {
+        return direction == 0 ? link(node(i, row), EAST) : link(node(gridSize - 1 - i, row), WEST);
+    }
+
+    private void scheduleBuses(int ptAgents) {
+        stopArrivals = new int[gridSize][2][gridSize - 1];
+        for (int row = 0; row < gridSize; row++) {
+            for (int direction = 0; direction < 2; direction++) {
+                int time = 0;
+                for (int i = 0; i < gridSize - 1; i++) {
+                    time += travelTime(length(lineLink(row, direction, i)), BUS_SPEED);
+                    stopArrivals[row][direction][i] = time;
+                    time += DWELL;
+                }
+            }
+        }
+        // every pt agent rides twice, spread over all lines and the service day
+        long trips = Math.max(1, 2L * ptAgents / busOccupancy);
+        long lines = 2L * gridSize;
+        headway = (int) Math.max(60, Math.min(3600, (LAST_BUS - FIRST_BUS) * lines / trips));
+    }
+
+    // first trip of the line reaching the stop of link i at or after time
+    private int trip(int row, int direction, int i, int time) {
+        int arrival = stopArrivals[row][direction][i];
+        int trip = Math.max(0, (time - FIRST_BUS - arrival + headway - 1) / headway);
+        return Math.min(trip, (LAST_BUS - FIRST_BUS) / headway);
+    }
+
+    private int tripStart(int trip) {
+        return FIRST_BUS + trip * headway;
+    }
+
+    private static String lineName(int row, int direction, int trip) {
+        return row + "_" + (direction == 0 ? "E" : "W") + "_" + trip;
+    }
+
+    // --- events
+
+    private long writeEvents(String filePath) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        int ptAgents = 0;
+        PriorityQueue<Actor> queue = new PriorityQueue<>(
+                (a, b) -> a.time != b.time ? Integer.compare(a.time, b.time) : Long.compare(a.order, b.order));
+        int[] existingLinks = new int[gridSize * gridSize * 4];
+        int linkCount = 0;
+        for (int node = 0; node < gridSize * gridSize; node++) {
+            for (int direction = 0; direction < 4; direction++) {
+                if (neighbour(node, direction) >= 0) {
+                    existingLinks[linkCount++] = link(node, direction);
+                }
+            }
+        }
+        List<Agent> agentList = new ArrayList<>(agents);
+        for (int i = 0; i < agents; i++) {
+            Agent agent = new Agent(i);
+            // departures around 7:30, eight hours of work, home by 21:00 at the latest
+            agent.departure = (int) Math.max(5.5 * 3600, Math.min(10 * 3600, 7.5 * 3600 + random.nextGaussian() * 3600));
+            agent.workDuration = (int) Math.max(2 * 3600, Math.min(21 * 3600 - agent.departure - 3600,
+                    8 * 3600 + random.nextGaussian() * 3600));
+            agent.pt = random.nextDouble() < ptShare;
+            if (agent.pt) {
+                ptAgents++;
+                agent.row = random.nextInt(gridSize);
+                agent.homeColumn = 1 + random.nextInt(gridSize - 2);
+                do {
+                    agent.workColumn = 1 + random.nextInt(gridSize - 2);
+                } while (agent.workColumn == agent.homeColumn);
+            } else {
+                agent.homeLink = existingLinks[random.nextInt(linkCount)];
+                do {
+                    agent.workLink = existingLinks[random.nextInt(linkCount)];
+                } while (agent.workLink == agent.homeLink);
+            }
+            agent.time = agent.departure;
+            agentList.add(agent);
+        }
+        scheduleBuses(ptAgents);
+        queue.addAll(agentList);
+        agentList = null;
+        long order = agents;
+        for (int row = 0; row < gridSize; row++) {
+            for (int direction = 0; direction < 2; direction++) {
+                for (int trip = 0; tripStart(trip) <= LAST_BUS; trip++) {
+                    queue.add(new Bus(order++, row, direction, trip));
+                }
+            }
+        }
+
+        long events = 0;
+        try (Writer out = open(filePath)) {
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n");
+            StringBuilder line = new StringBuilder(256);
+            while (!queue.isEmpty()) {
+                Actor actor = queue.poll();
+                boolean more;
+                // stay with the actor while it is still first in line
+                do {
+                    line.setLength(0);
+                    more = actor.emit(line);
+                    out.write(line.toString());
+                    events++;
+                } while (more && (queue.isEmpty() || actor.time < queue.peek().time));
+                if (more) {
+                    queue.add(actor);
+                }
+            }
+            out.write("</events>\n");
+        }
+        return events;
+    }
+
+    private abstract static class Actor {
+        final long order;
+        // time of the next event
+        int time;
+
+        Actor(long order) {
+            this.order = order;
+        }
+
+        // Appends the next event and moves on; false once the actor has no more events.
+        abstract boolean emit(StringBuilder line);
+    }
+
+    private static StringBuilder event(StringBuilder line, int time, String type) {
+        return line.append("\t<event time=\"").append(time).append(".0\" type=\"").append(type).append('"');
+    }
+
+    private static StringBuilder attribute(StringBuilder line, String name, Object value) {
+        return line.append(' ').append(name).append("=\"").append(value).append('"');
+    }
+
+    private static void end(StringBuilder line) {
+        line.append("  />\n");
+    }
+
+    // Home - work - home. Legs are generated event by event: step counts the events of the current leg.
+    private final class Agent extends Actor {
+        final String id;
+        boolean pt;
+        int departure;
+        int workDuration;
+        // car agents
+        int homeLink;
+        int workLink;
+        // pt agents
+        int row;
+        int homeColumn;
+        int workColumn;
+        // 0 to work, 1 home, 2 done
+        int leg = 0;
+        int step = 0;
+        // car leg: route links and the index of the current one
+        int[] route;
+        int routeIndex;
+        // pt leg
+        int direction;
+        int trip;
+        int boardLink;
+        int alightLink;
+        // where the activity before the leg took place
+        int activityLink;
+        int boardTime;
+        int alightTime;
+
+        Agent(int index) {
+            super(index);
+            this.id = "p" + index;
+        }
+
+        private String fromActivity() {
+            return leg == 0 ? "home" : "work";
+        }
+
+        private String toActivity() {
+            return leg == 0 ? "work" : "home";
+        }
+
+        @Override
+        boolean emit(StringBuilder line) {
+            return pt ? emitPt(line) : emitCar(line);
+        }
+
+        private boolean emitCar(StringBuilder line) {
+            String vehicle = "car_" + order;
+            if (step == 0) {
+                route = route(leg == 0 ? homeLink : workLink, leg == 0 ? workLink : homeLink);
+                routeIndex = 0;
+                end(attribute(attribute(attribute(event(line, time, "actend"), "person", id), "link", "l" + route[0]),
+                        "actType", fromActivity()));
+            } else if (step == 1) {
+                end(attribute(attribute(attribute(event(line, time, "departure"), "person", id), "link", "l" + route[0]),
+                        "legMode", "car"));
+            } else if (step == 2) {
+                end(attribute(attribute(event(line, time, "PersonEntersVehicle"), "person", id), "vehicle", vehicle));
+            } else if (step == 3) {
+                end(attribute(attribute(attribute(attribute(event(line, time, "vehicle enters traffic"), "person", id),
+                        "link", "l" + route[0]), "vehicle", vehicle), "networkMode", "car"));
+                // vehicles leave the departure link right away
+                time += 1;
+            } else if (routeIndex < route.length - 1) {
+                if (step % 2 == 0) {
+                    end(attribute(attribute(event(line, time, "left link"), "vehicle", vehicle), "link",
+                            "l" + route[routeIndex]));
+                } else {
+                    routeIndex++;
+                    end(attribute(attribute(event(line, time, "entered link"), "vehicle", vehicle), "link",
+                            "l" + route[routeIndex]));
+                    time += travelTime(length(route[routeIndex]), FREESPEED);
+                }
+            } else {
+                String link = "l" + route[route.length - 1];
+                int last = step - 4 - 2 * (route.length - 1);
+                if (last == 0) {
+                    end(attribute(attribute(attribute(attribute(event(line, time, "vehicle leaves traffic"), "person",
+                            id), "link", link), "vehicle", vehicle), "networkMode", "car"));
+                } else if (last == 1) {
+                    end(attribute(attribute(event(line, time, "PersonLeavesVehicle"), "person", id), "vehicle",
+                            vehicle));
+                } else if (last == 2) {
+                    end(attribute(attribute(attribute(event(line, time, "arrival"), "person", id), "link", link),
+                            "legMode", "car"));
+                } else {
+                    end(attribute(attribute(attribute(event(line, time, "actstart"), "person", id), "link", link),
+                            "actType", toActivity()));
+                    return nextLeg();
+                }
+            }
+            step++;
+            return true;
+        }
+
+        private boolean emitPt(StringBuilder line) {
+            switch (step) {
+            case 0:
+                int from = leg == 0 ? homeColumn : workColumn;
+                int to = leg == 0 ? workColumn : homeColumn;
+                direction = to > from ? 0 : 1;
+                int boardIndex = direction == 0 ? from - 1 : gridSize - 2 - from;
+                int alightIndex = direction == 0 ? to - 1 : gridSize - 2 - to;
+                boardLink = lineLink(row, direction, boardIndex);
+                // an activity ends on the link it started on, the first one at the first stop
+                activityLink = leg == 0 ? boardLink : alightLink;
+                alightLink = lineLink(row, direction, alightIndex);
+                trip = trip(row, direction, boardIndex, time);
+                boardTime = Math.max(time, tripStart(trip) + stopArrivals[row][direction][boardIndex]);
+                alightTime = tripStart(trip) + stopArrivals[row][direction][alightIndex];
+                end(attribute(attribute(attribute(event(line, time, "actend"), "person", id), "link",
+                        "l" + activityLink), "actType", fromActivity()));
+                break;
+            case 1:
+                end(attribute(attribute(attribute(event(line, time, "departure"), "person", id), "link",
+                        "l" + activityLink), "legMode", "pt"));
+                break;
+            case 2:
+                end(attribute(attribute(event(line, time, "waitingForPt"), "agent", id), "atStop", "s" + boardLink));
+                time = boardTime;
+                break;
+            case 3:
+                end(attribute(attribute(event(line, time, "PersonEntersVehicle"), "person", id), "vehicle",
+                        "bus_" + lineName(row, direction, trip)));
+                time = alightTime;
+                break;
+            case 4:
+                end(attribute(attribute(event(line, time, "PersonLeavesVehicle"), "person", id), "vehicle",
+                        "bus_" + lineName(row, direction, trip)));
+                break;
+            case 5:
+                end(attribute(attribute(attribute(event(line, time, "arrival"), "person", id), "link", "l" + alightLink),
+                        "legMode", "pt"));
+                break;
+            default:
+                end(attribute(attribute(attribute(event(line, time, "actstart"), "person", id), "link", "l" + alightLink),
+                        "actType", toActivity()));
+                return nextLeg();
+            }
+            step++;
+            return true;
+        }
+
+        private boolean nextLeg() {
+            route = null;
+            step = 0;
+            leg++;
+            time += workDuration;
+            return leg < 2;
+        }
+
+        // links from the start link to the end link, columns first (the shorter way round on rings), then rows
+        private int[] route(int startLink, int endLink) {
+            List<Integer> links = new ArrayList<>();
+            links.add(startLink);
+            int node = to(startLink);
+            int target = from(endLink);
+            while (node % gridSize != target % gridSize) {
+                int delta = target % gridSize - node % gridSize;
+                if (layout == Layout.RADIAL && Math.abs(delta) > gridSize / 2) {
+                    delta = -delta;
+                }
+                int direction = delta > 0 ? EAST : WEST;
+                links.add(link(node, direction));
+                node = neighbour(node, direction);
+            }
+            while (node != target) {
+                int direction = target / gridSize > node / gridSize ? NORTH : SOUTH;
+                links.add(link(node, direction));
+                node = neighbour(node, direction);
+            }
+            if (endLink != startLink) {
+                links.add(endLink);
+            }
+            int[] route = new int[links.size()];
+            for (int i = 0; i < route.length; i++) {
+                route[i] = links.get(i);
+            }
+            return route;
+        }
+    }
+
+    // One trip of a bus line. Passengers board and alight at a stop while the bus dwells there, between its
+    // arrival at the end of a link and leaving it.
+    private final class Bus extends Actor {
+        final int row;
+        final int direction;
+        final String driver;
+        final String vehicle;
+        int step = 0;
+        int linkIndex = 0;
+
+        Bus(long order, int row, int direction, int trip) {
+            super(order);
+            this.row = row;
+            this.direction = direction;
+            this.driver = "pt_" + lineName(row, direction, trip);
+            this.vehicle = "bus_" + lineName(row, direction, trip);
+            this.time = tripStart(trip);
+        }
+
+        @Override
+        boolean emit(StringBuilder line) {
+            int links = gridSize - 1;
+            int start = time;
+            String link = "l" + lineLink(row, direction, linkIndex);
+            if (step == 0) {
+                end(attribute(attribute(attribute(event(line, time, "departure"), "person", driver), "link", link),
+                        "legMode", "car"));
+            } else if (step == 1) {
+                end(attribute(attribute(event(line, time, "PersonEntersVehicle"), "person", driver), "vehicle",
+                        vehicle));
+            } else if (step == 2) {
+                end(attribute(attribute(attribute(attribute(event(line, time, "vehicle enters traffic"), "person",
+                        driver), "link", link), "vehicle", vehicle), "networkMode", "car"));
+                time = leaveTime(start, 0);
+            } else if (linkIndex < links - 1) {
+                if (step % 2 == 1) {
+                    end(attribute(attribute(event(line, time, "left link"), "vehicle", vehicle), "link", link));
+                } else {
+                    linkIndex++;
+                    end(attribute(attribute(event(line, time, "entered link"), "vehicle", vehicle), "link",
+                            "l" + lineLink(row, direction, linkIndex)));
+                    time = leaveTime(start, linkIndex);
+                }
+            } else {
+                int last = step - 3 - 2 * (links - 1);
+                if (last == 0) {
+                    end(attribute(attribute(attribute(attribute(event(line, time, "vehicle leaves traffic"), "person",
+                            driver), "link", link), "vehicle", vehicle), "networkMode", "car"));
+                } else if (last == 1) {
+                    end(attribute(attribute(event(line, time, "PersonLeavesVehicle"), "person", driver), "vehicle",
+                            vehicle));
+                } else {
+                    end(attribute(attribute(attribute(event(line, time, "arrival"), "person", driver), "link", link),
+                            "legMode", "car"));
+                    return false;
+                }
+            }
+            step++;
+            return true;
+        }
+
+        // the bus left link i - 1 at enteredAt; it leaves link i after driving it and dwelling at its stop
+        private int leaveTime(int enteredAt, int i) {
+            int previous = i == 0 ? 0 : stopArrivals[row][direction][i - 1] + DWELL;
+            return enteredAt + stopArrivals[row][direction][i] + DWELL - previous;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.matsim.project.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+// CSV writer that formats straight into a reusable byte buffer.
+// Produces the same text as commons-csv with CSVFormat.DEFAULT: comma separated, CRLF records, minimal quoting.
+// Paths ending with ".gz" are gzip compressed on a separate thread while the caller keeps formatting.
+public class FastCsvWriter implements Closeable {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int QUEUED_BLOCKS = 8;
+
+    private final OutputStream out;
+    private final Compressor compressor;
+
+    private Block block = new Block();
+    private boolean newRecord = true;
+
+    private static class Block {
+        final byte[] data = new byte[BLOCK_SIZE];
+        int length = 0;
+    }
+
+    public FastCsvWriter(String filePath) throws IOException {
+        if (filePath.endsWith(".gz")) {
+            this.out = null;
+            this.compressor = new Compressor(new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(filePath), BLOCK_SIZE), BLOCK_SIZE));
+            this.compressor.thread.start();
+        } else {
+            this.out = new FileOutputStream(filePath);
+            this.compressor = null;
+        }
+    }
+
+    // Compresses full blocks on its own thread and hands the emptied blocks back for reuse.
+    private static class Compressor implements Runnable {
+        static final Block END = new Block();
+
+        final OutputStream out;
+        final BlockingQueue<Block> full = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+        final BlockingQueue<Block> free = new ArrayBlockingQueue<>(QUEUED_BLOCKS + 2);
+        final Thread thread = new Thread(this, "csv-gzip");
+        volatile IOException failure;
+
+        Compressor(OutputStream out) {
+            this.out = out;
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Block block;
+                while ((block = full.take()) != END) {
+                    if (failure == null) {
+                        try {
+                            out.write(block.data, 0, block.length);
+                        } catch (IOException e) {
+                            // keep taking blocks so the writer never blocks, it reports the failure
+                            failure = e;
+                        }
+                    }
+                    block.length = 0;
+                    free.offer(block);
+                }
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void writeRecord(String... values) throws IOException {
+        for (String value : values) {
+            field(encode(value));
+        }
+        endRecord();
+    }
+
+    // Writes a value that was already passed through encode(), e.g. a person id used for many rows.
+    public void field(byte[] encoded) throws IOException {
+        separator();
+        int offset = 0;
+        while (offset < encoded.length) {
+            ensure(1);
+            int length = Math.min(encoded.length - offset, BLOCK_SIZE - block.length);
+            System.arraycopy(encoded, offset, block.data, block.length, length);
+            block.length += length;
+            offset += length;
+        }
+    }
+
+    public void field(int value) throws IOException {
+        separator();
+        ensure(11);
+        byte[] data = block.data;
+        int position = block.length;
+        long remaining = value;
+        if (remaining < 0) {
+            data[position++] = '-';
+            remaining = -remaining;
+        }
+        int end = position + digits(remaining);
+        for (int i = end - 1; i >= position; i--) {
+            data[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        block.length = end;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    public void endRecord() throws IOException {
+        ensure(2);
+        block.data[block.length++] = '\r';
+        block.data[block.length++] = '\n';
+        newRecord = true;
+    }
+
+    private void separator() throws IOException {
+        if (!newRecord) {
+            ensure(1);
+            block.data[block.length++] = ',';
+        }
+        newRecord = false;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (block.length + bytes > BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (block.length == 0) {
+            return;
+        }
+        if (compressor == null) {
+            out.write(block.data, 0, block.length);
+            block.length = 0;
+            return;
+        }
+        if (compressor.failure != null) {
+            throw compressor.failure;
+        }
+        try {
+            compressor.full.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        Block free = compressor.free.poll();
+        block = free != null ? free : new Block();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBlock();
+        if (compressor == null) {
+            out.close();
+            return;
+        }
+        try {
+            compressor.full.put(Compressor.END);
+            compressor.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (compressor.failure != null) {
+            throw compressor.failure;
+        }
+    }
+
+    // UTF-8 bytes of a value, quoted the way CSVFormat.DEFAULT (QuoteMode.MINIMAL) does it.
+    // Empty values are always quoted, commons-csv only does that for the first value of a record.
+    public static byte[] encode(String value) {
+        boolean quote = false;
+        if (value.isEmpty() || value.charAt(0) <= '#') {
+            quote = true;
+        } else {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\n' || c == '\r' || c == '"' || c == ',') {
+                    quote = true;
+                    break;
+                }
+            }
+            if (value.charAt(value.length() - 1) <= ' ') {
+                quote = true;
+            }
+        }
+        if (quote) {
+            value = '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+package org.matsim.project.utils;
+
+// Walks a line segment through a square grid in one pass (Amanatides & Woo) and reports every tile it crosses
+// in travel order, with the exact fraction of the segment length that lies inside the tile.
+// The traversal is a reusable cursor and does not allocate:
+//
+//     traversal.reset(x0, y0, x1, y1);
+//     while (traversal.next()) {
+//         use(traversal.tileX(), traversal.tileY(), traversal.fraction());
+//     }
+//
+// Tiles are reported by the coordinates of their lower left corner. Tiles the segment only touches in a point
+// (e.g. passing exactly through a grid corner) are skipped, so the fractions are all positive and add up to 1.
+// A segment of length zero is reported as its start tile with fraction 1.
+public class GridTraversal {
+
+    private final int tileSize;
+
+    private double x0, y0, dx, dy;
+    private int stepX, stepY;
+    private int cellX, cellY;
+    // segment parameter t in [0, 1] at which the walk leaves the current tile through a vertical/horizontal side
+    private double exitX, exitY;
+    private double position;
+
+    private int tileX, tileY;
+    private double fraction;
+
+    public GridTraversal(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    // Lower left corner of the tile containing the coordinate, on the same grid the traversal walks.
+    public static int snap(double coord, int tileSize) {
+        return (int) Math.floor(coord / tileSize) * tileSize;
+    }
+
+    public void reset(double x0, double y0, double x1, double y1) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.dx = x1 - x0;
+        this.dy = y1 - y0;
+        this.stepX = dx > 0 ? 1 : dx < 0 ? -1 : 0;
+        this.stepY = dy > 0 ? 1 : dy < 0 ? -1 : 0;
+        this.cellX = (int) Math.floor(x0 / tileSize);
+        this.cellY = (int) Math.floor(y0 / tileSize);
+        this.exitX = exitX();
+        this.exitY = exitY();
+        this.position = 0;
+    }
+
+    // Computed from the grid line itself instead of adding up steps, so long links do not accumulate error.
+    private double exitX() {
+        if (stepX == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ((double) (stepX > 0 ? cellX + 1 : cellX) * tileSize - x0) / dx;
+    }
+
+    private double exitY() {
+        if (stepY == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ((double) (stepY > 0 ? cellY + 1 : cellY) * tileSize - y0) / dy;
+    }
+
+    // Moves to the next tile with a positive share of the segment, returns false once the end point is reached.
+    public boolean next() {
+        if (position >= 1) {
+            return false;
+        }
+        if (stepX == 0 && stepY == 0) {
+            tileX = cellX * tileSize;
+            tileY = cellY * tileSize;
+            fraction = 1;
+            position = 1;
+            return true;
+        }
+        while (true) {
+            double exit = Math.min(Math.min(exitX, exitY), 1);
+            double start = position;
+            int x = cellX;
+            int y = cellY;
+            if (exit < 1) {
+                // through a corner both sides are crossed at once
+                if (exitX <= exit) {
+                    cellX += stepX;
+                    exitX = exitX();
+                }
+                if (exitY <= exit) {
+                    cellY += stepY;
+                    exitY = exitY();
+                }
+            }
+            position = exit;
+            if (exit > start) {
+                tileX = x * tileSize;
+                tileY = y * tileSize;
+                fraction = exit - start;
+                return true;
+            }
+            if (exit >= 1) {
+                return false;
+            }
+        }
+    }
+
+    public int tileX() {
+        return tileX;
+    }
+
+    public int tileY() {
+        return tileY;
+    }
+
+    // Share of the segment length inside the current tile.
+    public double fraction() {
+        return fraction;
+    }
+
+    // Number of tiles the segment crosses.
+    public int count(double x0, double y0, double x1, double y1) {
+        reset(x0, y0, x1, y1);
+        int count = 0;
+        while (next()) {
+            count++;
+        }
+        return count;
+    }
+}